@@ -18,14 +18,12 @@ package org.mariotaku.pickncrop;
 
 import android.Manifest;
 import android.app.Activity;
-import android.content.ClipData;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.net.Uri;
-import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.util.Log;
 import android.view.View;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
@@ -33,8 +31,12 @@ import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import org.mariotaku.pickncrop.library.MediaInfo;
+import org.mariotaku.pickncrop.library.MediaManifest;
 import org.mariotaku.pickncrop.library.MediaPickerActivity;
 
+import java.io.IOException;
+
 
 public class MainActivity extends Activity {
 
@@ -120,45 +122,20 @@ public class MainActivity extends Activity {
         switch (requestCode) {
             case REQUEST_PICK_MEDIA: {
                 if (resultCode == RESULT_OK) {
-                    StringBuilder hb = new StringBuilder();
-                    hb.append("<!DOCTYPE html>");
-                    hb.append("<html>");
-                    hb.append("<head>");
-                    hb.append("<meta charset=\"UTF-8\">");
-                    hb.append("</head>");
-
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-                        ClipData clipData = data.getClipData();
-                        for (int i = 0, j = clipData.getItemCount(); i < j; i++) {
-                            final ClipData.Item item = clipData.getItemAt(i);
-                            final Uri uri = item.getUri();
-                            final String type = getContentResolver().getType(uri);
-                            if (type != null && type.startsWith("video/")) {
-                                hb.append("<video src='");
-                                hb.append(uri.toString());
-                                hb.append("'/>");
-                            } else {
-                                hb.append("<img src='");
-                                hb.append(uri.toString());
-                                hb.append("'/>");
-                            }
-                            hb.append("</br>");
-                        }
-                    } else {
-                        final String type = data.resolveType(this);
-                        if (type != null && type.startsWith("video/")) {
-                            hb.append("<video src='");
-                            hb.append(data.getDataString());
-                            hb.append("'/>");
-                        } else {
-                            hb.append("<img src='");
-                            hb.append(data.getDataString());
-                            hb.append("'/>");
+                    // The manifest may list thousands of items, page through it off the main thread
+                    final Intent result = data;
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            final String html = buildResultHtml(result);
+                            runOnUiThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mWebView.loadDataWithBaseURL("http://example.com/", html, "text/html", "UTF-8", null);
+                                }
+                            });
                         }
-                    }
-
-                    hb.append("</html>");
-                    mWebView.loadDataWithBaseURL("http://example.com/", hb.toString(), "text/html", "UTF-8", null);
+                    }, "PickNCrop-ReadManifest").start();
                 }
                 return;
             }
@@ -166,6 +143,43 @@ public class MainActivity extends Activity {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    private String buildResultHtml(Intent data) {
+        StringBuilder hb = new StringBuilder();
+        hb.append("<!DOCTYPE html>");
+        hb.append("<html>");
+        hb.append("<head>");
+        hb.append("<meta charset=\"UTF-8\">");
+        hb.append("</head>");
+
+        try {
+            final MediaManifest.Reader reader = MediaManifest.open(this, data);
+            try {
+                MediaInfo info;
+                while ((info = reader.next()) != null) {
+                    final String uri = info.getUri().toString();
+                    final String type = info.getMimeType();
+                    if (type != null && type.startsWith("video/")) {
+                        hb.append("<video src='");
+                        hb.append(uri);
+                        hb.append("'/>");
+                    } else {
+                        hb.append("<img src='");
+                        hb.append(uri);
+                        hb.append("'/>");
+                    }
+                    hb.append("</br>");
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w("PickNCrop", e);
+        }
+
+        hb.append("</html>");
+        return hb.toString();
+    }
+
     private void takePhoto() {
         final Intent intent = MediaPickerActivity.with(this)
                 .takePhoto()
@@ -187,6 +201,7 @@ public class MainActivity extends Activity {
                 .containsVideo(true)
                 .videoOnly(false)
                 .allowMultiple(true)
+                .allowMediaManifest(true)
                 .build();
         startActivityForResult(intent, REQUEST_PICK_MEDIA);
     }
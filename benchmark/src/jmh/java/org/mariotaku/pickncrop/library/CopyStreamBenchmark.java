@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * {@link PNCUtils#copyStream(InputStream, OutputStream, java.security.MessageDigest, PNCUtils.CopyListener)}
+ * between two files, with each way it can move bytes:
+ * <ul>
+ * <li>{@code transfer}: both ends are files, bytes go through {@code FileChannel.transferTo}</li>
+ * <li>{@code buffered}: source is not a plain file stream, so pooled buffer is used</li>
+ * <li>{@code digest}: content is hashed for deduplication while copying</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+public class CopyStreamBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    public int size;
+
+    @Param({"transfer", "buffered", "digest"})
+    public String strategy;
+
+    private File mSource;
+    private File mTarget;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mSource = File.createTempFile("pnc_bench_source", ".bin");
+        mTarget = File.createTempFile("pnc_bench_target", ".bin");
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        final OutputStream os = new FileOutputStream(mSource);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mSource.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mTarget.delete();
+    }
+
+    @Benchmark
+    public long copyStream(final ByteCounter counter) throws IOException {
+        InputStream is = new FileInputStream(mSource);
+        final OutputStream os = new FileOutputStream(mTarget);
+        try {
+            final long copied;
+            switch (strategy) {
+                case "buffered": {
+                    // Any subclass hides the channel, like streams of most content providers
+                    is = new FilterInputStream(is) {
+                    };
+                    copied = PNCUtils.copyStream(is, os, null, null);
+                    break;
+                }
+                case "digest": {
+                    copied = PNCUtils.copyStream(is, os, PNCUtils.createContentDigest(), null);
+                    break;
+                }
+                default: {
+                    copied = PNCUtils.copyStream(is, os, null, null);
+                    break;
+                }
+            }
+            counter.bytes += copied;
+            return copied;
+        } finally {
+            PNCUtils.closeSilently(is);
+            PNCUtils.closeSilently(os);
+        }
+    }
+}
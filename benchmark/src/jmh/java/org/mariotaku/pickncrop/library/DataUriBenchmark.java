@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.util.Base64;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import repackaged.com.github.ooxi.jdatauri.DataUri;
+
+/**
+ * Decoding base64 {@code data:} URIs, such as images pasted from clipboard, fully in memory and
+ * as a stream the way imports read them
+ */
+@State(Scope.Thread)
+public class DataUriBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Size of decoded content, from an icon to a photo
+     */
+    @Param({"256", "4194304"})
+    public int size;
+
+    private String mUri;
+    private byte[] mBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        mUri = "data:image/png;base64," + Base64.encodeToString(data, Base64.NO_WRAP);
+        mBuffer = new byte[8192];
+    }
+
+    @Benchmark
+    public byte[] parse(final ByteCounter counter) {
+        final byte[] data = DataUri.parse(mUri, UTF_8).getData();
+        counter.bytes += data.length;
+        return data;
+    }
+
+    @Benchmark
+    public long parseStreaming(final ByteCounter counter) throws IOException {
+        final InputStream is = DataUri.parseStreaming(mUri, UTF_8).openStream();
+        long read = 0;
+        try {
+            int count;
+            while ((count = is.read(mBuffer)) != -1) {
+                read += count;
+            }
+        } finally {
+            is.close();
+        }
+        counter.bytes += read;
+        return read;
+    }
+}
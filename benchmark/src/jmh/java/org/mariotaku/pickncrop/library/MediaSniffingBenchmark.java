@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Type detection from content prefix and header probing done for every imported item. Samples
+ * are minimal files with the structures parsers look for, MP4 has its {@code moov} box after a
+ * 4 MB {@code mdat} as most camera recordings do.
+ */
+@State(Scope.Thread)
+public class MediaSniffingBenchmark {
+
+    @Param({"jpeg", "png", "mp4"})
+    public String type;
+
+    private File mFile;
+    private String mMimeType;
+    private byte[] mPrefix;
+    private int mPrefixLength;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final byte[] content;
+        switch (type) {
+            case "png": {
+                content = createPng();
+                mMimeType = "image/png";
+                break;
+            }
+            case "mp4": {
+                content = createMp4();
+                mMimeType = "video/mp4";
+                break;
+            }
+            default: {
+                content = createJpeg();
+                mMimeType = "image/jpeg";
+                break;
+            }
+        }
+        mFile = File.createTempFile("pnc_bench_media", ".bin");
+        final OutputStream os = new FileOutputStream(mFile);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        mPrefix = new byte[MediaTypeSniffer.PREFIX_LENGTH];
+        mPrefixLength = Math.min(content.length, mPrefix.length);
+        System.arraycopy(content, 0, mPrefix, 0, mPrefixLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Benchmark
+    public String sniff() {
+        return MediaTypeSniffer.sniff(mPrefix, mPrefixLength);
+    }
+
+    @Benchmark
+    public MediaInfo probe() {
+        return MediaProbe.probe(mFile, mMimeType);
+    }
+
+    private static byte[] createJpeg() throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bos);
+        out.writeShort(0xFFD8);
+        // APP1 with big endian EXIF holding orientation only
+        final ByteArrayOutputStream exif = new ByteArrayOutputStream();
+        final DataOutputStream exifOut = new DataOutputStream(exif);
+        exifOut.writeBytes("Exif\0\0MM");
+        exifOut.writeShort(42);
+        exifOut.writeInt(8);
+        exifOut.writeShort(1);
+        exifOut.writeShort(0x0112);
+        exifOut.writeShort(3);
+        exifOut.writeInt(1);
+        exifOut.writeShort(6);
+        exifOut.writeShort(0);
+        exifOut.writeInt(0);
+        out.writeShort(0xFFE1);
+        out.writeShort(exif.size() + 2);
+        exif.writeTo(out);
+        // Baseline SOF0 of a 4000x3000 image with 3 components
+        out.writeShort(0xFFC0);
+        out.writeShort(17);
+        out.writeByte(8);
+        out.writeShort(3000);
+        out.writeShort(4000);
+        out.write(new byte[10]);
+        out.writeShort(0xFFD9);
+        return bos.toByteArray();
+    }
+
+    private static byte[] createPng() throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bos);
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+        out.writeInt(13);
+        out.writeBytes("IHDR");
+        out.writeInt(1920);
+        out.writeInt(1080);
+        out.write(new byte[]{8, 6, 0, 0, 0});
+        out.writeInt(0);
+        return bos.toByteArray();
+    }
+
+    private static byte[] createMp4() throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(16);
+        out.writeBytes("ftypisom");
+        out.writeInt(0);
+        final int mdatSize = 4 * 1024 * 1024;
+        out.writeInt(8 + mdatSize);
+        out.writeBytes("mdat");
+        out.write(new byte[mdatSize]);
+        // mvhd version 0: timescale 1000, duration 12.345s
+        final ByteArrayOutputStream mvhd = new ByteArrayOutputStream();
+        final DataOutputStream mvhdOut = new DataOutputStream(mvhd);
+        mvhdOut.writeInt(0);
+        mvhdOut.writeInt(0);
+        mvhdOut.writeInt(0);
+        mvhdOut.writeInt(1000);
+        mvhdOut.writeInt(12345);
+        mvhdOut.write(new byte[80]);
+        // tkhd version 0 of a 1920x1080 track rotated by 90 degrees
+        final ByteArrayOutputStream tkhd = new ByteArrayOutputStream();
+        final DataOutputStream tkhdOut = new DataOutputStream(tkhd);
+        tkhdOut.writeInt(0);
+        tkhdOut.write(new byte[36]);
+        tkhdOut.writeInt(0);
+        tkhdOut.writeInt(0x10000);
+        tkhdOut.writeInt(0);
+        tkhdOut.writeInt(-0x10000);
+        tkhdOut.writeInt(0);
+        tkhdOut.writeInt(0);
+        tkhdOut.writeInt(0);
+        tkhdOut.writeInt(0);
+        tkhdOut.writeInt(0x40000000);
+        tkhdOut.writeInt(1920 << 16);
+        tkhdOut.writeInt(1080 << 16);
+        final int trakSize = 8 + 8 + tkhd.size();
+        out.writeInt(8 + 8 + mvhd.size() + trakSize);
+        out.writeBytes("moov");
+        out.writeInt(8 + mvhd.size());
+        out.writeBytes("mvhd");
+        mvhd.writeTo(out);
+        out.writeInt(trakSize);
+        out.writeBytes("trak");
+        out.writeInt(8 + tkhd.size());
+        out.writeBytes("tkhd");
+        tkhd.writeTo(out);
+        return bos.toByteArray();
+    }
+}
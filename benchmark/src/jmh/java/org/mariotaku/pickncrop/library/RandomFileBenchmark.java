@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Naming of files created in cache for each import, including the existence check
+ */
+@State(Scope.Thread)
+public class RandomFileBenchmark {
+
+    private File mDirectory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mDirectory = File.createTempFile("pnc_bench_cache", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public File randomFile() {
+        return PNCUtils.randomFile(mDirectory, "pnc__picked_media_", ".jpg");
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloader keeping downloaded media in a size bounded disk cache, so importing the same URL
+ * again doesn't hit network while response is fresh. Stale responses are revalidated with
+ * {@code If-None-Match} or {@code If-Modified-Since}, and reused if server responds 304.
+ * Freshness follows {@code Cache-Control} and {@code Expires}, and responses with
+ * {@code no-store} or larger than the whole cache are never cached.
+ * <p>
+ * Use it with {@link MediaPickerActivity.IntentBuilder#streamDownloaderClass(Class)}, override
+ * {@link #getMaxCacheSize()} in a subclass to change cache size.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class CachingNetworkStreamDownloader extends URLConnectionNetworkStreamDownloader {
+
+    public static final long DEFAULT_MAX_CACHE_SIZE = 20 * 1024 * 1024;
+    // Upper bound of freshness guessed from Last-Modified
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000;
+
+    private String mUrl;
+    private HttpResponseDiskCache.Entry mRevalidating;
+    private HttpResponseDiskCache.Entry mResponseEntry;
+    private String mContentEncoding;
+
+    public CachingNetworkStreamDownloader(final Context context) {
+        super(context);
+    }
+
+    /**
+     * @return Maximum size in bytes of cached responses
+     */
+    protected long getMaxCacheSize() {
+        return DEFAULT_MAX_CACHE_SIZE;
+    }
+
+    @Override
+    public DownloadResult get(final Uri uri) throws IOException {
+        final HttpResponseDiskCache cache = HttpResponseDiskCache.getInstance(getContext(),
+                getMaxCacheSize());
+        final String url = uri.toString();
+        mUrl = url;
+        final HttpResponseDiskCache.Entry cached = cache.get(url);
+        if (cached != null) {
+            final DownloadResult result = cached.isFresh(System.currentTimeMillis())
+                    ? openCached(cache, cached) : null;
+            if (result != null) return result;
+            if (cached.hasValidator()) {
+                mRevalidating = cached;
+                try {
+                    return download(cache, uri);
+                } catch (HttpStatusException e) {
+                    if (e.getStatusCode() != HttpURLConnection.HTTP_NOT_MODIFIED) throw e;
+                    final DownloadResult notModified = openCached(cache, mResponseEntry);
+                    if (notModified != null) {
+                        cache.update(mResponseEntry);
+                        return notModified;
+                    }
+                    // Evicted meanwhile, download again without conditions
+                } finally {
+                    mRevalidating = null;
+                }
+            }
+        }
+        return download(cache, uri);
+    }
+
+    @Override
+    protected void prepareConnection(@NonNull URLConnection connection) {
+        super.prepareConnection(connection);
+        // Set explicitly so body isn't decoded transparently, offsets used by resuming then refer
+        // to the same encoded bytes in every request
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+    }
+
+    @Override
+    protected void prepareInitialRequest(@NonNull URLConnection connection) {
+        final HttpResponseDiskCache.Entry entry = mRevalidating;
+        if (entry == null) return;
+        if (entry.etag != null) {
+            connection.setRequestProperty("If-None-Match", entry.etag);
+        }
+        if (entry.lastModified != null) {
+            connection.setRequestProperty("If-Modified-Since", entry.lastModified);
+        }
+    }
+
+    @Override
+    protected void onInitialResponse(@NonNull HttpURLConnection connection) throws IOException {
+        final long now = System.currentTimeMillis();
+        final int code = connection.getResponseCode();
+        final HttpResponseDiskCache.Entry revalidating = mRevalidating;
+        mContentEncoding = connection.getContentEncoding();
+        mResponseEntry = null;
+        final HttpResponseDiskCache.Entry entry;
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED && revalidating != null) {
+            entry = new HttpResponseDiskCache.Entry(revalidating.url);
+            entry.contentType = revalidating.contentType;
+            entry.length = revalidating.length;
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            // Keyed by requested URL rather than the one redirected to
+            entry = new HttpResponseDiskCache.Entry(mUrl);
+            entry.contentType = connection.getContentType();
+        } else {
+            return;
+        }
+        final String etag = connection.getHeaderField("ETag");
+        final String lastModified = connection.getHeaderField("Last-Modified");
+        // 304 may omit validators which didn't change
+        entry.etag = etag != null || revalidating == null ? etag : revalidating.etag;
+        entry.lastModified = lastModified != null || revalidating == null ? lastModified
+                : revalidating.lastModified;
+
+        final CacheControl cacheControl = CacheControl.parse(connection.getHeaderField("Cache-Control"));
+        final String vary = connection.getHeaderField("Vary");
+        // Only variants by encoding can be told apart, and encoding is always gzip here
+        if (cacheControl.noStore || vary != null && !"Accept-Encoding".equalsIgnoreCase(vary.trim())) {
+            return;
+        }
+        if (!cacheControl.noCache) {
+            entry.expires = now + getFreshnessLifetime(connection, cacheControl);
+        }
+        mResponseEntry = entry;
+    }
+
+    @Nullable
+    private static DownloadResult openCached(@NonNull HttpResponseDiskCache cache,
+                                             @Nullable HttpResponseDiskCache.Entry entry) {
+        if (entry == null) return null;
+        final InputStream is = cache.open(entry);
+        if (is == null) return null;
+        return new DownloadResult(is, entry.contentType, entry.length);
+    }
+
+    @NonNull
+    private DownloadResult download(@NonNull HttpResponseDiskCache cache, @NonNull Uri uri)
+            throws IOException {
+        final DownloadResult result = super.get(uri);
+        InputStream is = result.getStream();
+        long contentLength = result.getContentLength();
+        // Caching it would evict everything else, then itself
+        final boolean tooLarge = contentLength > getMaxCacheSize();
+        if ("gzip".equalsIgnoreCase(mContentEncoding)) {
+            is = new GZIPInputStream(is);
+            // Content-Length is of encoded body
+            contentLength = -1;
+        }
+        final HttpResponseDiskCache.Entry entry = mResponseEntry;
+        if (entry != null && !tooLarge) {
+            is = cache.store(entry, is);
+        }
+        return new DownloadResult(is, result.getMimeType(), contentLength);
+    }
+
+    /**
+     * @return Milliseconds response stays fresh since received
+     */
+    private static long getFreshnessLifetime(@NonNull HttpURLConnection connection,
+                                             @NonNull CacheControl cacheControl) {
+        if (cacheControl.maxAge >= 0) return cacheControl.maxAge * 1000;
+        final long date = connection.getDate() > 0 ? connection.getDate() : System.currentTimeMillis();
+        final long expires = connection.getExpiration();
+        if (expires > 0) return Math.max(0, expires - date);
+        final long lastModified = connection.getLastModified();
+        if (lastModified > 0 && lastModified < date) {
+            // Heuristic suggested by RFC 7234, 10% of time since last modification
+            return Math.min(MAX_HEURISTIC_LIFETIME, (date - lastModified) / 10);
+        }
+        return 0;
+    }
+
+    private static final class CacheControl {
+        boolean noStore;
+        boolean noCache;
+        long maxAge = -1;
+
+        @NonNull
+        static CacheControl parse(@Nullable String header) {
+            final CacheControl cc = new CacheControl();
+            if (header == null) return cc;
+            for (String directive : header.split(",")) {
+                final String d = directive.trim().toLowerCase(Locale.US);
+                if (d.equals("no-store")) {
+                    cc.noStore = true;
+                } else if (d.equals("no-cache") || d.startsWith("no-cache=")) {
+                    cc.noCache = true;
+                } else if (d.startsWith("max-age=")) {
+                    try {
+                        cc.maxAge = Long.parseLong(d.substring(8).replace("\"", "").trim());
+                    } catch (NumberFormatException e) {
+                        // Treat malformed max-age as stale
+                        cc.maxAge = 0;
+                    }
+                }
+            }
+            return cc;
+        }
+    }
+}
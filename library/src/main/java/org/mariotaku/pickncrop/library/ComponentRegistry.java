@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.app.Activity;
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.mariotaku.pickncrop.library.MediaPickerActivity.NetworkStreamDownloader;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves pluggable classes named in picker intents. Each name is resolved once per process,
+ * then its factory or class is reused by every import.
+ * <p>
+ * Downloaders can be registered under a name with a {@link Factory}, e.g. in
+ * {@link android.app.Application#onCreate()}, and selected with
+ * {@link MediaPickerActivity.IntentBuilder#streamDownloader(String)}. Names not registered are
+ * treated as class names, which need a public constructor taking {@link Context}.
+ * <p>
+ * Names that can't be resolved throw {@link IllegalArgumentException} instead of falling back to
+ * defaults.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ComponentRegistry {
+
+    private static final ConcurrentMap<String, Factory<? extends NetworkStreamDownloader>>
+            sStreamDownloaderFactories = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Class<? extends Activity>> sCropActivityClasses =
+            new ConcurrentHashMap<>();
+
+    private ComponentRegistry() {
+    }
+
+    /**
+     * Registers {@code factory} under {@code name}, replacing any factory registered before
+     */
+    public static void registerStreamDownloader(@NonNull String name,
+                                                @NonNull Factory<? extends NetworkStreamDownloader> factory) {
+        sStreamDownloaderFactories.put(name, factory);
+    }
+
+    /**
+     * Registers {@code cls} under its class name
+     *
+     * @throws IllegalArgumentException If {@code cls} can't be instantiated with a {@link Context}
+     */
+    public static void registerStreamDownloader(@NonNull Class<? extends NetworkStreamDownloader> cls) {
+        if (sStreamDownloaderFactories.containsKey(cls.getName())) return;
+        sStreamDownloaderFactories.putIfAbsent(cls.getName(), new ConstructorFactory<>(cls));
+    }
+
+    /**
+     * @throws IllegalArgumentException If nothing is registered under {@code name} and it's not a
+     *                                  usable {@link NetworkStreamDownloader} class
+     */
+    @NonNull
+    public static Factory<? extends NetworkStreamDownloader> getStreamDownloaderFactory(@NonNull String name) {
+        final Factory<? extends NetworkStreamDownloader> factory = sStreamDownloaderFactories.get(name);
+        if (factory != null) return factory;
+        registerStreamDownloader(loadClass(name, NetworkStreamDownloader.class));
+        return sStreamDownloaderFactories.get(name);
+    }
+
+    /**
+     * @throws IllegalArgumentException If {@code name} is not an {@link Activity} class
+     */
+    @NonNull
+    public static Class<? extends Activity> getCropActivityClass(@NonNull String name) {
+        final Class<? extends Activity> cls = sCropActivityClasses.get(name);
+        if (cls != null) return cls;
+        final Class<? extends Activity> loaded = loadClass(name, Activity.class);
+        sCropActivityClasses.putIfAbsent(name, loaded);
+        return loaded;
+    }
+
+    static void registerCropActivity(@NonNull Class<? extends Activity> cls) {
+        sCropActivityClasses.putIfAbsent(cls.getName(), cls);
+    }
+
+    @NonNull
+    private static <T> Class<? extends T> loadClass(@NonNull String name, @NonNull Class<T> type) {
+        final Class<?> cls;
+        try {
+            cls = Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("No " + type.getSimpleName() + " registered or found as "
+                    + name + ", check spelling or ProGuard rules", e);
+        }
+        if (!type.isAssignableFrom(cls)) {
+            throw new IllegalArgumentException(name + " is not a subclass of " + type.getName());
+        }
+        return cls.asSubclass(type);
+    }
+
+    /**
+     * Creates components for each import, implement it with a lambda or an anonymous class
+     */
+    public interface Factory<T> {
+        @NonNull
+        T create(@NonNull Context context);
+    }
+
+    private static final class ConstructorFactory<T> implements Factory<T> {
+
+        private final Constructor<? extends T> mConstructor;
+
+        ConstructorFactory(@NonNull Class<? extends T> cls) {
+            if (Modifier.isAbstract(cls.getModifiers())) {
+                throw new IllegalArgumentException(cls.getName() + " is abstract");
+            }
+            try {
+                mConstructor = cls.getConstructor(Context.class);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(cls.getName()
+                        + " needs a public constructor taking Context", e);
+            }
+        }
+
+        @NonNull
+        @Override
+        public T create(@NonNull Context context) {
+            try {
+                return mConstructor.newInstance(context);
+            } catch (InvocationTargetException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IllegalStateException(cause);
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Size bounded disk cache of HTTP response bodies used by {@link CachingNetworkStreamDownloader}.
+ * Each response is stored as a body file and a small properties file of its metadata, least
+ * recently used bodies are evicted first.
+ */
+final class HttpResponseDiskCache {
+
+    private static final String LOGTAG = "PickNCrop";
+    static final String CACHE_DIR = "pnc-http-cache";
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Temporary files older than this are left over by killed processes
+    private static final long TEMP_FILE_MAX_AGE = 60 * 60 * 1000;
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_CONTENT_TYPE = "content_type";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_EXPIRES = "expires";
+    private static final String KEY_LENGTH = "length";
+
+    private static HttpResponseDiskCache sInstance;
+
+    private final File mDirectory;
+    private volatile long mMaxSize;
+
+    private HttpResponseDiskCache(@NonNull File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    static synchronized HttpResponseDiskCache getInstance(@NonNull Context context, long maxSize) {
+        if (sInstance == null) {
+            final File dir = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+            sInstance = new HttpResponseDiskCache(dir, maxSize);
+        } else {
+            sInstance.mMaxSize = maxSize;
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return Cached response of {@code url}, or null if there's none
+     */
+    @Nullable
+    @WorkerThread
+    Entry get(@NonNull String url) {
+        final String key = getKey(url);
+        final File meta = new File(mDirectory, key + META_SUFFIX);
+        if (!meta.isFile() || !new File(mDirectory, key + BODY_SUFFIX).isFile()) return null;
+        final Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(meta);
+            props.load(is);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            PNCUtils.closeSilently(is);
+        }
+        // Different URL with the same hash
+        if (!url.equals(props.getProperty(KEY_URL))) return null;
+        final Entry entry = new Entry(url);
+        entry.contentType = props.getProperty(KEY_CONTENT_TYPE);
+        entry.etag = props.getProperty(KEY_ETAG);
+        entry.lastModified = props.getProperty(KEY_LAST_MODIFIED);
+        entry.expires = parseLong(props.getProperty(KEY_EXPIRES), 0);
+        entry.length = parseLong(props.getProperty(KEY_LENGTH), -1);
+        return entry;
+    }
+
+    /**
+     * Opens cached body of {@code entry} and marks it as recently used
+     *
+     * @return Body stream, or null if it's evicted
+     */
+    @Nullable
+    @WorkerThread
+    InputStream open(@NonNull Entry entry) {
+        final File body = new File(mDirectory, getKey(entry.url) + BODY_SUFFIX);
+        try {
+            final InputStream is = new FileInputStream(body);
+            //noinspection ResultOfMethodCallIgnored
+            body.setLastModified(System.currentTimeMillis());
+            return is;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rewrites metadata of {@code entry}, e.g. freshness after server responded 304
+     */
+    @WorkerThread
+    void update(@NonNull Entry entry) {
+        try {
+            writeMeta(entry, getKey(entry.url));
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to update cache entry of " + entry.url, e);
+        }
+    }
+
+    /**
+     * @return Stream reading {@code source} and storing what's read as body of {@code entry}.
+     * Entry is committed only when the end of {@code source} is reached, and given up once body
+     * grows larger than the whole cache.
+     */
+    @NonNull
+    @WorkerThread
+    InputStream store(@NonNull Entry entry, @NonNull InputStream source) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs() && !mDirectory.isDirectory()) {
+            return source;
+        }
+        final File temp = new File(mDirectory, UUID.randomUUID().toString() + TEMP_SUFFIX);
+        try {
+            return new CacheWritingInputStream(source, entry, temp);
+        } catch (IOException e) {
+            return source;
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until total size fits
+     */
+    @WorkerThread
+    synchronized void trim() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        final long now = System.currentTimeMillis();
+        long size = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX) && now - file.lastModified() > TEMP_FILE_MAX_AGE
+                    && file.delete()) {
+                continue;
+            }
+            size += file.length();
+        }
+        if (size <= mMaxSize) return;
+        // Sort once by snapshot of modification times, they change while sorting otherwise
+        final long[] lastModified = new long[files.length];
+        final Integer[] indices = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            indices[i] = i;
+        }
+        Arrays.sort(indices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final long l = lastModified[lhs], r = lastModified[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (Integer index : indices) {
+            if (size <= mMaxSize) break;
+            final File file = files[index];
+            final String name = file.getName();
+            if (!name.endsWith(BODY_SUFFIX)) continue;
+            final String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+            final File meta = new File(mDirectory, key + META_SUFFIX);
+            final long length = file.length() + meta.length();
+            if (file.delete()) {
+                //noinspection ResultOfMethodCallIgnored
+                meta.delete();
+                size -= length;
+            }
+        }
+    }
+
+    private void commit(@NonNull Entry entry, @NonNull File temp) throws IOException {
+        final String key = getKey(entry.url);
+        entry.length = temp.length();
+        final File body = new File(mDirectory, key + BODY_SUFFIX);
+        if (!temp.renameTo(body)) {
+            throw new IOException("Unable to rename " + temp + " to " + body);
+        }
+        writeMeta(entry, key);
+        trim();
+    }
+
+    private void writeMeta(@NonNull Entry entry, @NonNull String key) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty(KEY_URL, entry.url);
+        if (entry.contentType != null) {
+            props.setProperty(KEY_CONTENT_TYPE, entry.contentType);
+        }
+        if (entry.etag != null) {
+            props.setProperty(KEY_ETAG, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            props.setProperty(KEY_LAST_MODIFIED, entry.lastModified);
+        }
+        props.setProperty(KEY_EXPIRES, String.valueOf(entry.expires));
+        props.setProperty(KEY_LENGTH, String.valueOf(entry.length));
+        // Written aside and renamed, so readers never see half of it
+        final File temp = new File(mDirectory, UUID.randomUUID().toString() + TEMP_SUFFIX);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            props.store(os, null);
+        } finally {
+            PNCUtils.closeSilently(os);
+        }
+        final File meta = new File(mDirectory, key + META_SUFFIX);
+        if (!temp.renameTo(meta)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + meta);
+        }
+    }
+
+    @NonNull
+    private static String getKey(@NonNull String url) {
+        final MessageDigest digest = PNCUtils.createContentDigest();
+        try {
+            return PNCUtils.toHexString(digest.digest(url.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static long parseLong(@Nullable String value, long def) {
+        if (value == null) return def;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * Metadata of a cached response
+     */
+    static final class Entry {
+        @NonNull
+        final String url;
+        String contentType;
+        String etag;
+        String lastModified;
+        /**
+         * Time in milliseconds since epoch until which response is fresh, 0 if it always has to
+         * be revalidated
+         */
+        long expires;
+        /**
+         * Length of decoded body
+         */
+        long length = -1;
+
+        Entry(@NonNull String url) {
+            this.url = url;
+        }
+
+        boolean isFresh(long now) {
+            return now < expires;
+        }
+
+        boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    /**
+     * Copies everything read into a temporary file, which becomes the cached body once source
+     * is read to the end. Caching is silently given up if writing fails, or if body turns out
+     * larger than the cache, e.g. when it's gzipped or of unknown length.
+     */
+    private final class CacheWritingInputStream extends FilterInputStream {
+
+        private final Entry mEntry;
+        private final File mTemp;
+        private OutputStream mOutput;
+        private long mWritten;
+
+        CacheWritingInputStream(@NonNull InputStream in, @NonNull Entry entry, @NonNull File temp)
+                throws IOException {
+            super(in);
+            mEntry = entry;
+            mTemp = temp;
+            mOutput = new FileOutputStream(temp);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b == -1) {
+                finish();
+            } else if (mOutput != null) {
+                try {
+                    mOutput.write(b);
+                    onWritten(1);
+                } catch (IOException e) {
+                    abort();
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            final int count = super.read(b, off, len);
+            if (count == -1) {
+                finish();
+            } else if (mOutput != null) {
+                try {
+                    mOutput.write(b, off, count);
+                    onWritten(count);
+                } catch (IOException e) {
+                    abort();
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes wouldn't be cached
+            abort();
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort();
+            super.close();
+        }
+
+        private void onWritten(long count) {
+            mWritten += count;
+            if (mWritten > mMaxSize) {
+                abort();
+            }
+        }
+
+        private void finish() {
+            final OutputStream output = mOutput;
+            if (output == null) return;
+            mOutput = null;
+            try {
+                output.close();
+                commit(mEntry, mTemp);
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Unable to cache " + mEntry.url, e);
+                //noinspection ResultOfMethodCallIgnored
+                mTemp.delete();
+            }
+        }
+
+        private void abort() {
+            final OutputStream output = mOutput;
+            if (output == null) return;
+            mOutput = null;
+            PNCUtils.closeSilently(output);
+            //noinspection ResultOfMethodCallIgnored
+            mTemp.delete();
+        }
+    }
+}
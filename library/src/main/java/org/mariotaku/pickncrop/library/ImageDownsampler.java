@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Shrinks images to fit a maximum size without cropping. Source is decoded with the largest
+ * {@code inSampleSize} that keeps it at least as large as the output, so memory used depends on
+ * output size rather than source size.
+ */
+final class ImageDownsampler {
+
+    static final int DEFAULT_QUALITY = 90;
+
+    private ImageDownsampler() {
+    }
+
+    /**
+     * @return Output format matching {@code mimeType}, or null if images of this type shouldn't be
+     * downsampled (e.g. animated GIF)
+     */
+    @Nullable
+    static Bitmap.CompressFormat getCompressFormat(@Nullable String mimeType) {
+        if (mimeType == null || !mimeType.startsWith("image/")) return null;
+        switch (mimeType) {
+            case "image/gif": {
+                return null;
+            }
+            case "image/png": {
+                return Bitmap.CompressFormat.PNG;
+            }
+            case "image/webp": {
+                return Bitmap.CompressFormat.WEBP;
+            }
+            default: {
+                return Bitmap.CompressFormat.JPEG;
+            }
+        }
+    }
+
+    @NonNull
+    static String getMimeType(@NonNull Bitmap.CompressFormat format) {
+        switch (format) {
+            case PNG: {
+                return "image/png";
+            }
+            case WEBP: {
+                return "image/webp";
+            }
+            default: {
+                return "image/jpeg";
+            }
+        }
+    }
+
+    /**
+     * Decodes {@code source}, applies EXIF orientation and writes it to {@code target} scaled to
+     * fit {@code maxWidth}x{@code maxHeight}
+     *
+     * @return False if {@code source} already fits or is not a decodable image, {@code target}
+     * is untouched then
+     */
+    @WorkerThread
+    static boolean downsample(@NonNull File source, @NonNull File target, int maxWidth, int maxHeight,
+                              @NonNull Bitmap.CompressFormat format, int quality) throws IOException {
+        final String path = source.getAbsolutePath();
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) return false;
+        final int orientation = getExifOrientation(path);
+        final boolean swapped = orientation >= ExifInterface.ORIENTATION_TRANSPOSE;
+        // Bounds after rotation is what has to fit
+        final int width = swapped ? opts.outHeight : opts.outWidth;
+        final int height = swapped ? opts.outWidth : opts.outHeight;
+        if (width <= maxWidth && height <= maxHeight) return false;
+        final float scale = Math.min(maxWidth / (float) width, maxHeight / (float) height);
+        final int targetWidth = Math.max(1, Math.round(width * scale));
+        final int targetHeight = Math.max(1, Math.round(height * scale));
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = calculateInSampleSize(width, height, targetWidth, targetHeight);
+        final Bitmap decoded = BitmapFactory.decodeFile(path, opts);
+        if (decoded == null) return false;
+        final Matrix matrix = getOrientationMatrix(orientation);
+        final int decodedWidth = swapped ? decoded.getHeight() : decoded.getWidth();
+        final int decodedHeight = swapped ? decoded.getWidth() : decoded.getHeight();
+        matrix.postScale(targetWidth / (float) decodedWidth, targetHeight / (float) decodedHeight);
+        final Bitmap scaled = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(),
+                decoded.getHeight(), matrix, true);
+        if (scaled != decoded) {
+            decoded.recycle();
+        }
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(target);
+            if (!scaled.compress(format, quality, os)) {
+                throw new IOException("Unable to encode " + target);
+            }
+        } finally {
+            PNCUtils.closeSilently(os);
+            scaled.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * @return Largest power of two sample size which still decodes at least target size
+     */
+    static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static int getExifOrientation(@NonNull String path) {
+        try {
+            return new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    @NonNull
+    private static Matrix getOrientationMatrix(int orientation) {
+        final Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL: {
+                matrix.postScale(-1, 1);
+                break;
+            }
+            case ExifInterface.ORIENTATION_ROTATE_180: {
+                matrix.postRotate(180);
+                break;
+            }
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL: {
+                matrix.postScale(1, -1);
+                break;
+            }
+            case ExifInterface.ORIENTATION_TRANSPOSE: {
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            }
+            case ExifInterface.ORIENTATION_ROTATE_90: {
+                matrix.postRotate(90);
+                break;
+            }
+            case ExifInterface.ORIENTATION_TRANSVERSE: {
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            }
+            case ExifInterface.ORIENTATION_ROTATE_270: {
+                matrix.postRotate(270);
+                break;
+            }
+        }
+        return matrix;
+    }
+}
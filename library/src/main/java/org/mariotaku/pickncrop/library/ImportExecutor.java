@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mariotaku.pickncrop.library;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs imports and counts how busy it is. Each item copied is a task of its own, so imports share
+ * threads fairly and no thread is held waiting for others. By default they run on a small pool
+ * of background priority threads owned by the library, so they never wait behind, or hold up,
+ * {@code AsyncTask}s of the host app.
+ * <p>
+ * Hosts having their own I/O pool can wrap it instead, and pass it to
+ * {@link MediaPickerActivity#setImportExecutor(ImportExecutor)} or
+ * {@link MediaImporter#MediaImporter(android.content.Context, ImportExecutor)}. Wrap it only once,
+ * as each wrapper counts its own tasks.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ImportExecutor implements Executor {
+
+    private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ImportExecutor sDefault;
+
+    private final Executor mDelegate;
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mActiveCount = new AtomicInteger();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mBusyNanos = new AtomicLong();
+
+    /**
+     * @param delegate Executor tasks actually run on, thread priority is left as it is
+     */
+    public ImportExecutor(@NonNull Executor delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * @return Executor backed by the library's own pool, idle threads exit after a while
+     */
+    @NonNull
+    public static synchronized ImportExecutor getDefault() {
+        if (sDefault == null) {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    newThreadFactory("PickNCrop-Import"));
+            pool.allowCoreThreadTimeOut(true);
+            sDefault = new ImportExecutor(pool);
+        }
+        return sDefault;
+    }
+
+    @Override
+    public void execute(@NonNull final Runnable command) {
+        mQueueDepth.incrementAndGet();
+        try {
+            mDelegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mQueueDepth.decrementAndGet();
+                    mActiveCount.incrementAndGet();
+                    final long start = System.nanoTime();
+                    try {
+                        command.run();
+                    } finally {
+                        mBusyNanos.addAndGet(System.nanoTime() - start);
+                        mCompletedCount.incrementAndGet();
+                        mActiveCount.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected
+            mQueueDepth.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of tasks waiting for a thread
+     */
+    public int getQueueDepth() {
+        return mQueueDepth.get();
+    }
+
+    /**
+     * @return Number of tasks running
+     */
+    public int getActiveCount() {
+        return mActiveCount.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * @return Total time threads spent running finished tasks, summed over all threads
+     */
+    public long getBusyTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mBusyNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "ImportExecutor{" +
+                "queueDepth=" + mQueueDepth.get() +
+                ", activeCount=" + mActiveCount.get() +
+                ", completedCount=" + mCompletedCount.get() +
+                ", busyTimeMillis=" + getBusyTimeMillis() +
+                '}';
+    }
+
+    /**
+     * @return Factory of threads running at background priority, like {@code AsyncTask}'s
+     */
+    @NonNull
+    static ThreadFactory newThreadFactory(@NonNull final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name + " #" + mCount.getAndIncrement());
+            }
+        };
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mariotaku.pickncrop.library;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Persistent record of imports of an {@link ImportSession}, so they can be resumed after the
+ * process is killed. Keeps selections, and for each item its target file, bytes of it committed
+ * to disk, and its result once copied.
+ * <p>
+ * Stored as a small properties file, written aside and renamed so a crash never leaves half of
+ * it. Committed bytes change often, so they're appended to a record of their own per item
+ * instead, and a commit writes and syncs only that. Failing to write either only costs resuming,
+ * so errors are logged rather than thrown.
+ */
+final class ImportJournal {
+
+    private static final String LOGTAG = "PickNCrop";
+    static final String JOURNAL_DIR = "pnc-import-journal";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String COMMITS_SUFFIX = ".commits";
+    // Each record is committed byte count as a big endian long
+    private static final int COMMIT_RECORD_LENGTH = 8;
+
+    /**
+     * Bytes copied between commits, target file is synced to disk on each commit
+     */
+    static final long COMMIT_INTERVAL = 4 * 1024 * 1024;
+
+    private static final String KEY_REQUEST_COUNT = "request.count";
+    private static final String KEY_ITEM_COUNT = "item.count";
+
+    private final File mFile;
+    // Holds commit record of each item, named after its target file
+    private final File mCommitsDir;
+    private final List<Request> mRequests = new ArrayList<>();
+    // Keyed by source Uri
+    private final Map<String, Item> mItems = new LinkedHashMap<>();
+
+    private ImportJournal(@NonNull File file) {
+        mFile = file;
+        mCommitsDir = new File(file.getPath() + COMMITS_SUFFIX);
+    }
+
+    @NonNull
+    static ImportJournal create(@NonNull Context context, @NonNull String id) {
+        return new ImportJournal(getFile(context, id));
+    }
+
+    /**
+     * @return Journal written with {@code id} before, or null if there's none or it can't be read
+     */
+    @Nullable
+    static ImportJournal open(@NonNull Context context, @NonNull String id) {
+        final ImportJournal journal = new ImportJournal(getFile(context, id));
+        final Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(journal.mFile);
+            props.load(is);
+            journal.read(props);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(LOGTAG, "Unable to read import journal " + journal.mFile, e);
+            return null;
+        } finally {
+            PNCUtils.closeSilently(is);
+        }
+        return journal;
+    }
+
+    @NonNull
+    synchronized List<Request> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    /**
+     * Records selection unless it's recorded already, e.g. when it's being resumed
+     */
+    synchronized void addRequest(@NonNull Uri[] uris, boolean needsCrop, boolean deleteSource) {
+        final Request request = new Request(uris, needsCrop, deleteSource);
+        if (mRequests.contains(request)) return;
+        mRequests.add(request);
+        save();
+    }
+
+    /**
+     * @return Copy of {@code src} not finished when journal was written, or null if there's none
+     */
+    @Nullable
+    synchronized Item getPartialCopy(@NonNull Uri src) {
+        final Item item = mItems.get(src.toString());
+        if (item == null || item.file == null || item.result != null) return null;
+        return new Item(item.file, item.committed, item.mimeType, null);
+    }
+
+    /**
+     * Removes finished copy of {@code src}, so its result is handed out only once
+     *
+     * @return Finished copy, or null if there's none
+     */
+    @Nullable
+    synchronized Item takeFinishedCopy(@NonNull Uri src) {
+        final Item item = mItems.get(src.toString());
+        if (item == null || item.result == null) return null;
+        mItems.remove(src.toString());
+        save();
+        return item;
+    }
+
+    synchronized void onCopyStarted(@NonNull Uri src, @NonNull File target, @Nullable String mimeType) {
+        mItems.put(src.toString(), new Item(target, 0, mimeType, null));
+        save();
+    }
+
+    /**
+     * Appends to commit record of copy of {@code src} only, outside lock of this journal so
+     * copies running in parallel don't wait for each other's sync
+     *
+     * @param committed Bytes of target file synced to disk
+     */
+    void onCommitted(@NonNull Uri src, long committed) {
+        final Item item;
+        synchronized (this) {
+            item = mItems.get(src.toString());
+        }
+        if (item == null || item.file == null) return;
+        final File record = getCommitRecord(item.file);
+        FileOutputStream os = null;
+        try {
+            if (!mCommitsDir.exists() && !mCommitsDir.mkdirs() && !mCommitsDir.isDirectory()) {
+                throw new IOException("Unable to create " + mCommitsDir);
+            }
+            os = new FileOutputStream(record, true);
+            os.write(ByteBuffer.allocate(COMMIT_RECORD_LENGTH).putLong(committed).array());
+            os.getFD().sync();
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to write commit record " + record, e);
+        } finally {
+            PNCUtils.closeSilently(os);
+        }
+    }
+
+    synchronized void onCopyFinished(@NonNull Uri src, @NonNull Uri result, @Nullable String mimeType) {
+        final Item item = mItems.get(src.toString());
+        mItems.put(src.toString(), new Item(item != null ? item.file : null, -1, mimeType, result));
+        save();
+        deleteCommitRecord(item);
+    }
+
+    /**
+     * Forgets copy of {@code src}, its target file is to be deleted by caller
+     */
+    synchronized void onCopyFailed(@NonNull Uri src) {
+        final Item item = mItems.remove(src.toString());
+        if (item == null) return;
+        save();
+        deleteCommitRecord(item);
+    }
+
+    /**
+     * Called once all imports ended, nothing is left to resume
+     */
+    synchronized void delete() {
+        mRequests.clear();
+        mItems.clear();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+        final File[] records = mCommitsDir.listFiles();
+        if (records != null) {
+            for (File record : records) {
+                //noinspection ResultOfMethodCallIgnored
+                record.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mCommitsDir.delete();
+    }
+
+    private void read(@NonNull Properties props) {
+        final int requestCount = Integer.parseInt(props.getProperty(KEY_REQUEST_COUNT, "0"));
+        for (int i = 0; i < requestCount; i++) {
+            final String prefix = "request." + i + ".";
+            final int uriCount = Integer.parseInt(props.getProperty(prefix + "uri.count"));
+            final Uri[] uris = new Uri[uriCount];
+            for (int j = 0; j < uriCount; j++) {
+                uris[j] = Uri.parse(props.getProperty(prefix + "uri." + j));
+            }
+            mRequests.add(new Request(uris, Boolean.parseBoolean(props.getProperty(prefix + "needs_crop")),
+                    Boolean.parseBoolean(props.getProperty(prefix + "delete_source"))));
+        }
+        final int itemCount = Integer.parseInt(props.getProperty(KEY_ITEM_COUNT, "0"));
+        for (int i = 0; i < itemCount; i++) {
+            final String prefix = "item." + i + ".";
+            final String file = props.getProperty(prefix + "file");
+            final String result = props.getProperty(prefix + "result");
+            final File target = file != null ? new File(file) : null;
+            final long committed = target != null && result == null ? readCommitted(target) : -1;
+            mItems.put(props.getProperty(prefix + "source"), new Item(target, committed,
+                    props.getProperty(prefix + "mime_type"),
+                    result != null ? Uri.parse(result) : null));
+        }
+    }
+
+    private void save() {
+        final Properties props = new Properties();
+        props.setProperty(KEY_REQUEST_COUNT, String.valueOf(mRequests.size()));
+        for (int i = 0, j = mRequests.size(); i < j; i++) {
+            final Request request = mRequests.get(i);
+            final String prefix = "request." + i + ".";
+            props.setProperty(prefix + "uri.count", String.valueOf(request.uris.length));
+            for (int k = 0; k < request.uris.length; k++) {
+                props.setProperty(prefix + "uri." + k, request.uris[k].toString());
+            }
+            props.setProperty(prefix + "needs_crop", String.valueOf(request.needsCrop));
+            props.setProperty(prefix + "delete_source", String.valueOf(request.deleteSource));
+        }
+        props.setProperty(KEY_ITEM_COUNT, String.valueOf(mItems.size()));
+        int i = 0;
+        for (Map.Entry<String, Item> entry : mItems.entrySet()) {
+            final Item item = entry.getValue();
+            final String prefix = "item." + i++ + ".";
+            props.setProperty(prefix + "source", entry.getKey());
+            if (item.file != null) {
+                props.setProperty(prefix + "file", item.file.getAbsolutePath());
+            }
+            if (item.mimeType != null) {
+                props.setProperty(prefix + "mime_type", item.mimeType);
+            }
+            if (item.result != null) {
+                props.setProperty(prefix + "result", item.result.toString());
+            }
+        }
+        final File dir = mFile.getParentFile();
+        final File temp = new File(dir, mFile.getName() + TEMP_SUFFIX);
+        FileOutputStream os = null;
+        try {
+            if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Unable to create " + dir);
+            }
+            os = new FileOutputStream(temp);
+            props.store(os, null);
+            os.getFD().sync();
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to write import journal " + mFile, e);
+            return;
+        } finally {
+            PNCUtils.closeSilently(os);
+        }
+        if (!temp.renameTo(mFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            Log.w(LOGTAG, "Unable to rename " + temp + " to " + mFile);
+        }
+    }
+
+    /**
+     * @return Last committed byte count of {@code target}, 0 if none is recorded. A record cut
+     * off by a crash is ignored, and one never synced reads as 0, so it never claims too much.
+     */
+    private long readCommitted(@NonNull File target) {
+        final File record = getCommitRecord(target);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(record, "r");
+            final long count = raf.length() / COMMIT_RECORD_LENGTH;
+            if (count == 0) return 0;
+            raf.seek((count - 1) * COMMIT_RECORD_LENGTH);
+            return raf.readLong();
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to read commit record " + record, e);
+            return 0;
+        } finally {
+            PNCUtils.closeSilently(raf);
+        }
+    }
+
+    private void deleteCommitRecord(@Nullable Item item) {
+        if (item == null || item.file == null) return;
+        //noinspection ResultOfMethodCallIgnored
+        getCommitRecord(item.file).delete();
+    }
+
+    @NonNull
+    private File getCommitRecord(@NonNull File target) {
+        return new File(mCommitsDir, target.getName());
+    }
+
+    @NonNull
+    private static File getFile(@NonNull Context context, @NonNull String id) {
+        return new File(new File(context.getCacheDir(), JOURNAL_DIR), id);
+    }
+
+    static final class Request {
+        @NonNull
+        final Uri[] uris;
+        final boolean needsCrop, deleteSource;
+
+        Request(@NonNull Uri[] uris, boolean needsCrop, boolean deleteSource) {
+            this.uris = uris;
+            this.needsCrop = needsCrop;
+            this.deleteSource = deleteSource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Request)) return false;
+            final Request that = (Request) o;
+            return needsCrop == that.needsCrop && deleteSource == that.deleteSource
+                    && Arrays.equals(uris, that.uris);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Arrays.hashCode(uris);
+            result = 31 * result + (needsCrop ? 1 : 0);
+            result = 31 * result + (deleteSource ? 1 : 0);
+            return result;
+        }
+    }
+
+    static final class Item {
+        @Nullable
+        final File file;
+        final long committed;
+        @Nullable
+        final String mimeType;
+        // Set once copied
+        @Nullable
+        final Uri result;
+
+        Item(@Nullable File file, long committed, @Nullable String mimeType, @Nullable Uri result) {
+            this.file = file;
+            this.committed = committed;
+            this.mimeType = mimeType;
+            this.result = result;
+        }
+    }
+}
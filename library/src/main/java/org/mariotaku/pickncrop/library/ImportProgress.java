@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+
+/**
+ * Snapshot of an import in progress
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ImportProgress {
+
+    private final long bytesCopied;
+    private final long totalBytes;
+    private final int itemsDone;
+    private final int itemCount;
+    private final long elapsedTime;
+    long bytesPerSecond;
+
+    ImportProgress(long bytesCopied, long totalBytes, int itemsDone, int itemCount, long elapsedTime) {
+        this.bytesCopied = bytesCopied;
+        this.totalBytes = totalBytes;
+        this.itemsDone = itemsDone;
+        this.itemCount = itemCount;
+        this.elapsedTime = elapsedTime;
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     * @return Total bytes of all items, or -1 if size of any item is unknown
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return Number of items finished, including failed ones
+     */
+    public int getItemsDone() {
+        return itemsDone;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * @return Milliseconds since import started
+     */
+    public long getElapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * @return Recent copy speed, smoothed over last few updates
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "ImportProgress{" +
+                "bytesCopied=" + bytesCopied +
+                ", totalBytes=" + totalBytes +
+                ", itemsDone=" + itemsDone +
+                ", itemCount=" + itemCount +
+                ", elapsedTime=" + elapsedTime +
+                ", bytesPerSecond=" + bytesPerSecond +
+                '}';
+    }
+
+    public interface Listener {
+        /**
+         * Called on main thread, at most a few times per second
+         */
+        @MainThread
+        void onImportProgress(@NonNull ImportProgress progress);
+    }
+
+    /**
+     * Exponential moving average of copy speed, not thread safe
+     */
+    static final class ThroughputMeter {
+        private static final float SMOOTHING = 0.3f;
+
+        private long lastBytes;
+        private long lastTime;
+        private float bytesPerSecond = -1;
+
+        void update(@NonNull ImportProgress progress) {
+            final long dt = progress.elapsedTime - lastTime;
+            if (dt > 0) {
+                final float instant = (progress.bytesCopied - lastBytes) * 1000f / dt;
+                bytesPerSecond = bytesPerSecond < 0 ? instant
+                        : bytesPerSecond + SMOOTHING * (instant - bytesPerSecond);
+                lastBytes = progress.bytesCopied;
+                lastTime = progress.elapsedTime;
+            }
+            progress.bytesPerSecond = Math.max(0, Math.round(bytesPerSecond));
+        }
+    }
+}
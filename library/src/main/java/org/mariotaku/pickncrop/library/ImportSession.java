@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mariotaku.pickncrop.library;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.UiThread;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Holds imports of a {@link MediaPickerActivity} outside of it, so they keep running while it's
+ * recreated, e.g. on rotation. Recreated activity finds it by {@link #getId()} and attaches to it,
+ * an outcome reached while no activity is attached is held until one attaches.
+ * <p>
+ * Selections made while importing are queued, imported one after another and returned together.
+ * If allowed, results of many items are written to a {@link MediaManifest} on the import
+ * executor as the last step, so main thread never writes it.
+ * They're recorded in an {@link ImportJournal}, so if the process is killed, the relaunched
+ * activity can {@link #resume(Context, MediaImporter, String)} them from what was copied.
+ */
+@UiThread
+final class ImportSession implements MediaImporter.Callback {
+
+    private static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull final Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
+    private static final String LOGTAG = "PickNCrop";
+
+    private static final Map<String, ImportSession> sSessions = new HashMap<>();
+
+    private final String mId;
+    private final Context mContext;
+    private final MediaImporter mImporter;
+    private final ImportJournal mJournal;
+    private final Queue<Request> mPendingRequests = new LinkedList<>();
+    private final ArrayList<MediaInfo> mImportedMedia = new ArrayList<>();
+    private Request mCurrentRequest;
+    private Future<List<MediaInfo>> mFuture;
+    private ImportProgress mLastProgress;
+    private MediaPickerActivity mActivity;
+    private boolean mClosed;
+    private boolean mWriteManifest;
+    // Set while manifest of finished imports is written
+    private boolean mWritingManifest;
+    private boolean mCancelRequested;
+
+    // Outcome waiting for an activity to attach
+    private List<MediaInfo> mResult;
+    private Uri mResultManifest;
+    private boolean mResultNeedsCrop;
+    private Exception mError;
+    private boolean mCanceled;
+
+    private ImportSession(@NonNull final String id, @NonNull final Context context,
+                          @NonNull final MediaImporter importer, @NonNull final ImportJournal journal) {
+        mId = id;
+        mContext = context.getApplicationContext();
+        mImporter = importer;
+        mJournal = journal;
+    }
+
+    @NonNull
+    static ImportSession create(@NonNull final Context context, @NonNull final MediaImporter importer) {
+        final String id = UUID.randomUUID().toString();
+        final ImportSession session = new ImportSession(id, context, importer,
+                ImportJournal.create(context, id));
+        sSessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * Recreates session {@code id} killed with its process
+     *
+     * @return Session with selections to import again, which reuse what was copied. Null if
+     * nothing was left to import
+     */
+    @Nullable
+    static ImportSession resume(@NonNull final Context context, @NonNull final MediaImporter importer,
+                                @NonNull final String id) {
+        final ImportJournal journal = ImportJournal.open(context, id);
+        if (journal == null) return null;
+        if (journal.getRequests().isEmpty()) {
+            journal.delete();
+            return null;
+        }
+        final ImportSession session = new ImportSession(id, context, importer, journal);
+        sSessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * @return Selections recorded before process was killed, to be passed to
+     * {@link #importMedia(Uri[], MediaImporter.Options, boolean)} again
+     */
+    @NonNull
+    List<ImportJournal.Request> getJournaledRequests() {
+        return mJournal.getRequests();
+    }
+
+    /**
+     * @return Session with {@code id}, or null if it's closed or process was restarted since
+     */
+    @Nullable
+    static ImportSession get(@Nullable final String id) {
+        if (id == null) return null;
+        return sSessions.get(id);
+    }
+
+    @NonNull
+    String getId() {
+        return mId;
+    }
+
+    boolean isImporting() {
+        return mCurrentRequest != null;
+    }
+
+    /**
+     * @param writeManifest Whether results of more than {@link MediaManifest#MAX_INLINE_RESULTS}
+     *                      items are written to a manifest
+     */
+    void setWriteManifest(final boolean writeManifest) {
+        mWriteManifest = writeManifest;
+    }
+
+    /**
+     * Starts importing {@code uris}, or queues them if an import is running. Items being
+     * imported or queued already are left out, as they're returned once with the selection
+     * that queued them first.
+     *
+     * @return False if all of {@code uris} are being imported already, e.g. selection was
+     * delivered twice
+     */
+    boolean importMedia(@NonNull final Uri[] uris, @NonNull final MediaImporter.Options options,
+                        final boolean needsCrop) {
+        if (mCurrentRequest == null) {
+            mJournal.addRequest(uris, needsCrop, options.deleteSource);
+            start(new Request(uris, options.journal(mJournal), needsCrop));
+            return true;
+        }
+        final Uri[] remaining = withoutImportingOrPending(uris);
+        if (remaining.length == 0) return false;
+        mJournal.addRequest(remaining, needsCrop, options.deleteSource);
+        mPendingRequests.add(new Request(remaining, options.journal(mJournal), needsCrop));
+        return true;
+    }
+
+    void cancel() {
+        mPendingRequests.clear();
+        if (mWritingManifest) {
+            mCancelRequested = true;
+            return;
+        }
+        final Future<List<MediaInfo>> future = mFuture;
+        if (future == null) return;
+        future.cancel(false);
+    }
+
+    void attach(@NonNull final MediaPickerActivity activity) {
+        mActivity = activity;
+        if (mLastProgress != null) {
+            activity.onImportProgress(mLastProgress);
+        }
+        deliverOutcome();
+    }
+
+    void detach(@NonNull final MediaPickerActivity activity) {
+        if (mActivity != activity) return;
+        mActivity = null;
+    }
+
+    /**
+     * Called when activity is finishing, so nothing can attach anymore. Running imports are
+     * canceled and media not delivered are released.
+     */
+    void close() {
+        sSessions.remove(mId);
+        mClosed = true;
+        mActivity = null;
+        cancel();
+        mJournal.delete();
+        deliverOutcome();
+    }
+
+    @Override
+    public void onProgress(@NonNull final ImportProgress progress) {
+        mLastProgress = progress;
+        if (mActivity == null) return;
+        mActivity.onImportProgress(progress);
+    }
+
+    @Override
+    public void onImported(@NonNull final List<MediaInfo> media) {
+        mImportedMedia.addAll(media);
+        final Request next = mPendingRequests.poll();
+        if (next != null) {
+            start(next);
+            return;
+        }
+        final List<MediaInfo> result = new ArrayList<>(mImportedMedia);
+        final boolean needsCrop = mCurrentRequest.needsCrop;
+        mImportedMedia.clear();
+        mFuture = null;
+        if (mWriteManifest && result.size() > MediaManifest.MAX_INLINE_RESULTS) {
+            writeManifest(result, needsCrop);
+            return;
+        }
+        importsFinished(result, needsCrop, null);
+    }
+
+    /**
+     * Writes manifest of {@code media} on import executor, then finishes imports on main thread
+     */
+    private void writeManifest(@NonNull final List<MediaInfo> media, final boolean needsCrop) {
+        mWritingManifest = true;
+        final PickedMediaCache cache = PickedMediaCache.getInstance(mContext);
+        final Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                Uri manifest = null;
+                try {
+                    manifest = MediaManifest.write(cache, media);
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "Unable to write media manifest", e);
+                }
+                final Uri written = manifest;
+                MAIN_THREAD_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        importsFinished(media, needsCrop, written);
+                    }
+                });
+            }
+        };
+        try {
+            mImporter.getExecutor().execute(write);
+        } catch (RuntimeException e) {
+            // Rejected, results are put in Intent instead
+            Log.w(LOGTAG, "Unable to write media manifest", e);
+            importsFinished(media, needsCrop, null);
+        }
+    }
+
+    /**
+     * @param manifest Manifest of {@code media}, or null if results are to be put in Intent
+     */
+    private void importsFinished(@NonNull final List<MediaInfo> media, final boolean needsCrop,
+                                 @Nullable final Uri manifest) {
+        mWritingManifest = false;
+        if (mCancelRequested) {
+            mCancelRequested = false;
+            releaseAll(media);
+            if (manifest != null) {
+                PickedMediaCache.getInstance(mContext).release(manifest);
+            }
+            onCanceled();
+            return;
+        }
+        final Request next = mPendingRequests.poll();
+        if (next != null) {
+            // Selected while manifest was written, it's written again with them
+            if (manifest != null) {
+                PickedMediaCache.getInstance(mContext).release(manifest);
+            }
+            mImportedMedia.addAll(media);
+            start(next);
+            return;
+        }
+        mResultNeedsCrop = needsCrop;
+        mResult = media;
+        mResultManifest = manifest;
+        importsEnded();
+        deliverOutcome();
+    }
+
+    @Override
+    public void onFailed(@NonNull final Exception e) {
+        mError = e;
+        importsEnded();
+        deliverOutcome();
+    }
+
+    @Override
+    public void onCanceled() {
+        mCanceled = true;
+        importsEnded();
+        deliverOutcome();
+    }
+
+    private void start(@NonNull final Request request) {
+        mCurrentRequest = request;
+        mFuture = mImporter.importMedia(request.uris, request.options, MAIN_THREAD_EXECUTOR, this);
+    }
+
+    /**
+     * @return Items of {@code uris} neither being imported nor queued, in the same order
+     */
+    @NonNull
+    private Uri[] withoutImportingOrPending(@NonNull final Uri[] uris) {
+        final Set<Uri> queued = new HashSet<>();
+        Collections.addAll(queued, mCurrentRequest.uris);
+        for (Request pending : mPendingRequests) {
+            Collections.addAll(queued, pending.uris);
+        }
+        final List<Uri> remaining = new ArrayList<>(uris.length);
+        for (Uri uri : uris) {
+            if (!queued.contains(uri)) {
+                remaining.add(uri);
+            }
+        }
+        return remaining.toArray(new Uri[remaining.size()]);
+    }
+
+    private void importsEnded() {
+        mCurrentRequest = null;
+        mFuture = null;
+        mLastProgress = null;
+        mPendingRequests.clear();
+        mJournal.delete();
+        // Media of earlier selections is not going to be returned without the failed ones
+        releaseAll(mImportedMedia);
+        mImportedMedia.clear();
+    }
+
+    private void deliverOutcome() {
+        if (mClosed) {
+            if (mResult != null) {
+                releaseAll(mResult);
+            }
+            if (mResultManifest != null) {
+                PickedMediaCache.getInstance(mContext).release(mResultManifest);
+            }
+            mResult = null;
+            mResultManifest = null;
+            mError = null;
+            mCanceled = false;
+            return;
+        }
+        final MediaPickerActivity activity = mActivity;
+        if (activity == null) return;
+        if (mResult != null) {
+            final List<MediaInfo> result = mResult;
+            final Uri manifest = mResultManifest;
+            mResult = null;
+            mResultManifest = null;
+            activity.onMediaImported(result, manifest, mResultNeedsCrop);
+        } else if (mError != null) {
+            final Exception error = mError;
+            mError = null;
+            activity.onImportFailed(error);
+        } else if (mCanceled) {
+            mCanceled = false;
+            activity.onImportCanceled();
+        }
+    }
+
+    private void releaseAll(@NonNull final List<MediaInfo> media) {
+        if (media.isEmpty()) return;
+        final PickedMediaCache cache = PickedMediaCache.getInstance(mContext);
+        for (MediaInfo info : media) {
+            cache.release(info.getUri());
+        }
+    }
+
+    private static class Request {
+        @NonNull
+        final Uri[] uris;
+        @NonNull
+        final MediaImporter.Options options;
+        final boolean needsCrop;
+
+        Request(@NonNull final Uri[] uris, @NonNull final MediaImporter.Options options,
+                final boolean needsCrop) {
+            this.uris = uris;
+            this.options = options;
+            this.needsCrop = needsCrop;
+        }
+    }
+}
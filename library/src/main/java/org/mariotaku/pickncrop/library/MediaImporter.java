@@ -0,0 +1,1309 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import org.mariotaku.pickncrop.library.MediaPickerActivity.NetworkStreamDownloader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import repackaged.com.github.ooxi.jdatauri.DataUri;
+import repackaged.com.github.ooxi.jdatauri.StreamingDataUri;
+
+/**
+ * Copies media into {@link PickedMediaCache} without any UI, so it can be used from services or
+ * background jobs as well. {@link MediaPickerActivity} uses it for importing picked items.
+ * <pre>
+ * final Future&lt;List&lt;MediaInfo&gt;&gt; future = new MediaImporter(context)
+ *         .importMedia(uris, new MediaImporter.Options().maximumSize(1024, 1024));
+ * final List&lt;MediaInfo&gt; media = future.get();
+ * </pre>
+ * Imported files belong to caller, release them with {@link PickedMediaCache#release(Uri)} once
+ * consumed.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class MediaImporter {
+
+    static final int DEFAULT_PARALLELISM = 3;
+
+    private static final String SCHEME_HTTP = "http";
+    private static final String SCHEME_HTTPS = "https";
+    private static final String SCHEME_DATA = "data";
+    private static final String MIME_TYPE_OCTET_STREAM = "application/octet-stream";
+    private static final String LOGTAG = "PickNCrop";
+    private static final long PROGRESS_INTERVAL = 200;
+
+    // Stands in for target of files downloaded into cache already, which are only read through
+    private static final OutputStream DISCARD_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) {
+        }
+    };
+
+    // Copies in progress in this process, keyed by options affecting output and source
+    private static final ConcurrentMap<String, SharedCopy> sInFlightCopies = new ConcurrentHashMap<>();
+
+    private final Context mContext;
+    private final ImportExecutor mExecutor;
+
+    /**
+     * Imports on {@link ImportExecutor#getDefault()}
+     */
+    public MediaImporter(@NonNull Context context) {
+        this(context, ImportExecutor.getDefault());
+    }
+
+    public MediaImporter(@NonNull Context context, @NonNull ImportExecutor executor) {
+        mContext = context.getApplicationContext();
+        mExecutor = executor;
+    }
+
+    @NonNull
+    public ImportExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Same as {@link #importMedia(Uri[], Options, Executor, Callback)} without callback
+     */
+    @NonNull
+    public Future<List<MediaInfo>> importMedia(@NonNull Uri[] uris, @NonNull Options options) {
+        return importMedia(uris, options, null, null);
+    }
+
+    /**
+     * Starts copying {@code uris} in background
+     *
+     * @param callbackExecutor Executor {@code callback} is called on, e.g. one posting to main
+     *                         thread. If null, {@code callback} is called on worker threads
+     * @return Future of imported media, in the same order as {@code uris}. Canceling it stops
+     * copying within one buffer and deletes files already copied
+     */
+    @NonNull
+    public Future<List<MediaInfo>> importMedia(@NonNull Uri[] uris, @NonNull Options options,
+                                               @Nullable Executor callbackExecutor,
+                                               @Nullable Callback callback) {
+        if (uris.length == 0) throw new IllegalArgumentException("No media to import");
+        final ImportTask task = new ImportTask(mContext, mExecutor, uris, options, callbackExecutor,
+                callback);
+        task.start();
+        return task.mFuture;
+    }
+
+    /**
+     * Receives progress and outcome of an import. Exactly one of {@link #onImported(List)},
+     * {@link #onFailed(Exception)} and {@link #onCanceled()} is called.
+     */
+    public interface Callback {
+
+        /**
+         * Called at most a few times per second
+         */
+        void onProgress(@NonNull ImportProgress progress);
+
+        /**
+         * @param media Imported media in the same order as sources, without items skipped with
+         *              {@link MediaPickerActivity#FAILURE_POLICY_SKIP}
+         */
+        void onImported(@NonNull List<MediaInfo> media);
+
+        void onFailed(@NonNull Exception e);
+
+        void onCanceled();
+    }
+
+    /**
+     * {@link Callback} also receiving each item as soon as it's copied, without waiting for the
+     * rest
+     */
+    public interface ItemCallback extends Callback {
+
+        /**
+         * Called once for each source copied, in the order they finish. Media still belongs to
+         * the import, it's released if import fails or is canceled afterwards.
+         *
+         * @param index Index of item in sources
+         */
+        void onItemImported(int index, @NonNull MediaInfo media);
+    }
+
+    /**
+     * What to do with imported media, settings default to a plain copy
+     */
+    public static final class Options {
+        int parallelism = DEFAULT_PARALLELISM;
+        boolean skipFailed;
+        boolean deduplicate;
+        boolean deleteSource;
+        int maxWidth = -1, maxHeight = -1;
+        Bitmap.CompressFormat outputFormat;
+        int outputQuality = -1;
+        ComponentRegistry.Factory<? extends NetworkStreamDownloader> streamDownloaderFactory;
+        ImportJournal journal;
+
+        /**
+         * @param parallelism Maximum number of items copied at the same time, values less than 1
+         *                    are treated as 1
+         */
+        public Options parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        public Options failurePolicy(@MediaPickerActivity.FailurePolicy String policy) {
+            this.skipFailed = MediaPickerActivity.FAILURE_POLICY_SKIP.equals(policy);
+            return this;
+        }
+
+        /**
+         * Reuse cached file when identical content is imported again, results may then share the
+         * same Uri
+         */
+        public Options deduplicate(boolean deduplicate) {
+            this.deduplicate = deduplicate;
+            return this;
+        }
+
+        /**
+         * Delete sources once copied. Sources already in {@link PickedMediaCache} are moved
+         * instead of copied.
+         */
+        public Options deleteSource(boolean deleteSource) {
+            this.deleteSource = deleteSource;
+            return this;
+        }
+
+        /**
+         * Shrink images larger than {@code w} x {@code h}, other media are kept as is
+         */
+        public Options maximumSize(int w, int h) {
+            this.maxWidth = w;
+            this.maxHeight = h;
+            return this;
+        }
+
+        /**
+         * Format of downsampled images, defaults to one matching original
+         */
+        public Options outputFormat(@Nullable Bitmap.CompressFormat format) {
+            this.outputFormat = format;
+            return this;
+        }
+
+        public Options outputQuality(int quality) {
+            this.outputQuality = quality;
+            return this;
+        }
+
+        /**
+         * Downloader for {@code http} and {@code https} sources, defaults to
+         * {@link URLConnectionNetworkStreamDownloader}
+         */
+        public Options streamDownloader(@Nullable ComponentRegistry.Factory<? extends NetworkStreamDownloader> factory) {
+            this.streamDownloaderFactory = factory;
+            return this;
+        }
+
+        /**
+         * Records progress to {@code journal}, and reuses copies recorded in it
+         */
+        Options journal(@Nullable ImportJournal journal) {
+            this.journal = journal;
+            return this;
+        }
+    }
+
+    /**
+     * Runs each item as a task of its own on {@link ImportExecutor}, scheduling next item when
+     * one finishes, so no thread ever waits for the others. {@link #call()} collects results, it's
+     * run through {@link #mFuture} by whichever item finishes last.
+     */
+    private static final class ImportTask implements Callable<List<MediaInfo>> {
+
+        private final Context mContext;
+        private final Executor mExecutor;
+        private final Uri[] mSourceUris;
+        private final Executor mCallbackExecutor;
+        private final Callback mCallback;
+        private final int mParallelism;
+        private final boolean mSkipFailed;
+        private final boolean mDeduplicate;
+        private final boolean mDeleteSource;
+        private final int mDownsampleWidth, mDownsampleHeight;
+        private final Bitmap.CompressFormat mOutputFormat;
+        private final int mOutputQuality;
+        private final ComponentRegistry.Factory<? extends NetworkStreamDownloader> mStreamDownloaderFactory;
+        private final String mCopyKeyPrefix;
+        private final ImportJournal mJournal;
+
+        final FutureTask<List<MediaInfo>> mFuture = new FutureTask<List<MediaInfo>>(this) {
+            @Override
+            public boolean cancel(final boolean mayInterruptIfRunning) {
+                if (!super.cancel(mayInterruptIfRunning)) return false;
+                closeOpenStreams();
+                return true;
+            }
+
+            @Override
+            protected void done() {
+                onDone();
+            }
+        };
+
+        private final AtomicLong mBytesCopied = new AtomicLong();
+        private final AtomicLong mTotalBytes = new AtomicLong();
+        private final AtomicInteger mUnknownSizeCount = new AtomicInteger();
+        private final AtomicInteger mItemsDone = new AtomicInteger();
+        private final AtomicLong mLastProgressTime = new AtomicLong();
+        private final ImportProgress.ThroughputMeter mThroughputMeter = new ImportProgress.ThroughputMeter();
+        private final PNCUtils.CopyListener mCopyListener = new PNCUtils.CopyListener() {
+            @Override
+            public void onBytesCopied(final long count) throws IOException {
+                if (mFuture.isCancelled()) throw new InterruptedIOException("Import canceled");
+                mBytesCopied.addAndGet(count);
+                publishImportProgress(false);
+            }
+        };
+        // Sources being read, closed on cancel so blocking reads return immediately
+        private final Set<Closeable> mOpenStreams = Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+        private volatile long mStartTime;
+        private volatile long mStartNanos;
+        private volatile int mItemCount;
+        // Guarded by this, results kept until delivered so they can be discarded on cancel
+        private CopyResult[] mCompleted;
+        // Set up by prepare() before any item is scheduled
+        private Uri[] mUris;
+        private int[] mUriIndices;
+        private Integer[] mOrder;
+        private final AtomicInteger mNextItem = new AtomicInteger();
+        private final AtomicInteger mItemsRemaining = new AtomicInteger();
+        // Failure import fails with, remaining items are not started once it's set
+        private final AtomicReference<Exception> mError = new AtomicReference<>();
+        // Last failure of skipped items
+        private volatile Exception mSkippedError;
+
+        ImportTask(@NonNull final Context context, @NonNull final Executor executor,
+                   @NonNull final Uri[] sourceUris, @NonNull final Options options,
+                   @Nullable final Executor callbackExecutor, @Nullable final Callback callback) {
+            mContext = context;
+            mExecutor = executor;
+            mSourceUris = sourceUris;
+            mCallbackExecutor = callbackExecutor;
+            mCallback = callback;
+            mParallelism = Math.max(1, Math.min(options.parallelism, sourceUris.length));
+            mSkipFailed = options.skipFailed;
+            mDeduplicate = options.deduplicate;
+            mDeleteSource = options.deleteSource;
+            mDownsampleWidth = options.maxWidth;
+            mDownsampleHeight = options.maxHeight;
+            mOutputFormat = options.outputFormat;
+            mOutputQuality = options.outputQuality;
+            mStreamDownloaderFactory = options.streamDownloaderFactory != null
+                    ? options.streamDownloaderFactory
+                    : ComponentRegistry.getStreamDownloaderFactory(URLConnectionNetworkStreamDownloader.class.getName());
+            mJournal = options.journal;
+            mCopyKeyPrefix = mDeleteSource + "," + mDeduplicate + "," + mDownsampleWidth + "x"
+                    + mDownsampleHeight + "," + mOutputFormat + "," + mOutputQuality + ",";
+        }
+
+        void start() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prepare();
+                    } catch (RuntimeException e) {
+                        mError.compareAndSet(null, e);
+                        mFuture.run();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Queries sizes of items, then schedules first items to copy
+         */
+        private void prepare() {
+            if (mFuture.isCancelled()) return;
+            final ContentResolver cr = mContext.getContentResolver();
+            // Same item selected more than once is copied only once
+            final Uri[] uris;
+            final int[] uriIndices = new int[mSourceUris.length];
+            if (mDeduplicate) {
+                final List<Uri> uniqueUris = new ArrayList<>(mSourceUris.length);
+                final Map<Uri, Integer> indices = new HashMap<>();
+                for (int i = 0, j = mSourceUris.length; i < j; i++) {
+                    Integer index = indices.get(mSourceUris[i]);
+                    if (index == null) {
+                        index = uniqueUris.size();
+                        uniqueUris.add(mSourceUris[i]);
+                        indices.put(mSourceUris[i], index);
+                    }
+                    uriIndices[i] = index;
+                }
+                uris = uniqueUris.toArray(new Uri[uniqueUris.size()]);
+            } else {
+                for (int i = 0, j = mSourceUris.length; i < j; i++) {
+                    uriIndices[i] = i;
+                }
+                uris = mSourceUris;
+            }
+            mStartTime = SystemClock.elapsedRealtime();
+            mStartNanos = System.nanoTime();
+            mItemCount = uris.length;
+            final long[] sizes = new long[uris.length];
+            for (int i = 0, j = uris.length; i < j; i++) {
+                sizes[i] = querySize(cr, uris[i]);
+                if (sizes[i] >= 0) {
+                    mTotalBytes.addAndGet(sizes[i]);
+                } else {
+                    mUnknownSizeCount.incrementAndGet();
+                }
+            }
+            publishImportProgress(true);
+            mUris = uris;
+            mUriIndices = uriIndices;
+            mOrder = smallestFirst(sizes);
+            synchronized (this) {
+                // Canceled meanwhile, and nothing to discard
+                if (mFuture.isCancelled()) return;
+                mCompleted = new CopyResult[uris.length];
+            }
+            mItemsRemaining.set(uris.length);
+            for (int i = 0, j = Math.min(mParallelism, uris.length); i < j; i++) {
+                scheduleNextItem();
+            }
+        }
+
+        private void scheduleNextItem() {
+            while (true) {
+                final int k = mNextItem.getAndIncrement();
+                if (k >= mOrder.length) return;
+                final int index = mOrder[k];
+                if (!isStopped()) {
+                    try {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                copyItemAt(index);
+                            }
+                        });
+                        return;
+                    } catch (RuntimeException e) {
+                        // Rejected, host shut its executor down
+                        mError.compareAndSet(null, e);
+                    }
+                }
+                // Not started, as import failed or is canceled
+                itemFinished();
+            }
+        }
+
+        private void copyItemAt(final int index) {
+            copyItemAt(index, null);
+        }
+
+        /**
+         * @param shared Copy of another import this item waited for, item no longer holds a slot
+         *               of parallelism then
+         */
+        private void copyItemAt(final int index, @Nullable final SharedCopy shared) {
+            final Uri src = mUris[index];
+            boolean waiting = false;
+            try {
+                if (isStopped()) return;
+                SharedCopy owned = null;
+                if (shared == null) {
+                    owned = new SharedCopy();
+                    final SharedCopy inFlight = sInFlightCopies.putIfAbsent(mCopyKeyPrefix + src, owned);
+                    if (inFlight != null) {
+                        waiting = true;
+                        waitForSharedCopy(index, inFlight);
+                        return;
+                    }
+                }
+                final CopyResult result = copyItem(mContext.getContentResolver(), src, owned, shared);
+                final boolean kept;
+                synchronized (this) {
+                    kept = mCompleted != null;
+                    if (kept) {
+                        mCompleted[index] = result;
+                    }
+                }
+                if (!kept) {
+                    // Results were discarded on cancel already
+                    PickedMediaCache.getInstance(mContext).release(result.uri);
+                } else if (mCallback instanceof ItemCallback) {
+                    deliverItem(index, result);
+                }
+            } catch (IOException | SecurityException e) {
+                if (mSkipFailed && !mFuture.isCancelled()) {
+                    Log.w(LOGTAG, "Skipped " + src, e);
+                    mSkippedError = e;
+                } else {
+                    mError.compareAndSet(null, e);
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                mError.compareAndSet(null, e);
+            } finally {
+                if (!waiting) {
+                    itemDone();
+                    if (shared == null) {
+                        scheduleNextItem();
+                    }
+                    itemFinished();
+                }
+            }
+        }
+
+        /**
+         * Continues item once {@code inFlight} is done, without holding a thread meanwhile. Its
+         * slot goes to next item, so other items keep copying.
+         */
+        private void waitForSharedCopy(final int index, @NonNull final SharedCopy inFlight) {
+            scheduleNextItem();
+            inFlight.whenDone(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                copyItemAt(index, inFlight);
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        // Rejected, host shut its executor down
+                        mError.compareAndSet(null, e);
+                        itemDone();
+                        itemFinished();
+                    }
+                }
+            });
+        }
+
+        private void itemFinished() {
+            if (mItemsRemaining.decrementAndGet() == 0) {
+                mFuture.run();
+            }
+        }
+
+        private boolean isStopped() {
+            return mFuture.isCancelled() || mError.get() != null;
+        }
+
+        /**
+         * Called once every item is finished
+         */
+        @Override
+        public List<MediaInfo> call() throws Exception {
+            final CopyResult[] copyResults;
+            synchronized (this) {
+                copyResults = mCompleted;
+            }
+            if (mFuture.isCancelled()) throw new InterruptedException();
+            final Exception error = mError.get();
+            if (error != null) {
+                // Null if prepare() failed
+                if (takeCompleted() != null) {
+                    discardResults(copyResults);
+                }
+                throw error;
+            }
+            final List<MediaInfo> results = new ArrayList<>(mSourceUris.length);
+            for (int index : mUriIndices) {
+                final CopyResult result = copyResults[index];
+                if (result == null) continue;
+                results.add(toMediaInfo(result));
+            }
+            if (results.isEmpty()) {
+                final Exception skippedError = mSkippedError;
+                throw skippedError != null ? skippedError : new IOException("No media copied");
+            }
+            return results;
+        }
+
+        /**
+         * Small items are copied first, so the first ones reach {@link ItemCallback} as early as
+         * possible and slow ones don't hold up the rest. Items of unknown size, usually remote
+         * ones, go last.
+         *
+         * @return Indices of items in order they should be copied
+         */
+        @NonNull
+        private static Integer[] smallestFirst(@NonNull final long[] sizes) {
+            final Integer[] order = new Integer[sizes.length];
+            for (int i = 0, j = sizes.length; i < j; i++) {
+                order[i] = i;
+            }
+            // Stable, so items of same size keep order of selection
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer lhs, final Integer rhs) {
+                    final long l = sizes[lhs] >= 0 ? sizes[lhs] : Long.MAX_VALUE;
+                    final long r = sizes[rhs] >= 0 ? sizes[rhs] : Long.MAX_VALUE;
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            return order;
+        }
+
+        @NonNull
+        private static MediaInfo toMediaInfo(@NonNull final CopyResult result) {
+            MediaInfo info = result.mediaInfo;
+            if (info == null) {
+                info = new MediaInfo(-1, -1, MediaProbe.ORIENTATION_UNDEFINED, -1);
+            }
+            info.uri = result.uri;
+            info.mimeType = result.mimeType;
+            return info;
+        }
+
+        /**
+         * Hands copied item to {@link ItemCallback}, once for each source it was selected as
+         */
+        private void deliverItem(final int index, @NonNull final CopyResult result) {
+            final MediaInfo info = toMediaInfo(result);
+            for (int i = 0, j = mUriIndices.length; i < j; i++) {
+                if (mUriIndices[i] != index) continue;
+                final int sourceIndex = i;
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((ItemCallback) mCallback).onItemImported(sourceIndex, info);
+                    }
+                });
+            }
+        }
+
+        /**
+         * {@link #copyCoalesced(ContentResolver, Uri, SharedCopy, SharedCopy)} reporting
+         * {@link MediaPickerMetrics#STAGE_COPY}
+         */
+        private CopyResult copyItem(@NonNull final ContentResolver cr, @NonNull final Uri src,
+                                    @Nullable final SharedCopy owned, @Nullable final SharedCopy shared)
+                throws IOException, InterruptedException {
+            final long start = System.nanoTime();
+            CopyResult result = null;
+            Class<? extends Throwable> errorClass = null;
+            try {
+                result = copyCoalesced(cr, src, owned, shared);
+                return result;
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                errorClass = e.getClass();
+                throw e;
+            } finally {
+                Metrics.emit(MediaPickerMetrics.STAGE_COPY, System.nanoTime() - start,
+                        result != null ? result.bytes : -1, src.getScheme(), 1, errorClass,
+                        result != null && result.cacheHit);
+            }
+        }
+
+        /**
+         * Shares file of {@code shared}, a copy of {@code src} another import with same options
+         * made. Otherwise copies {@code src} and completes {@code owned} with result, so imports
+         * waiting for it share it. This way the same source is never transferred or written
+         * twice at once, e.g. when a selection is delivered twice.
+         */
+        private CopyResult copyCoalesced(@NonNull final ContentResolver cr, @NonNull final Uri src,
+                                         @Nullable final SharedCopy owned,
+                                         @Nullable final SharedCopy shared)
+                throws IOException, InterruptedException {
+            if (shared != null) {
+                final CopyResult sharedResult = shared.getResult();
+                if (sharedResult != null) {
+                    final CopyResult result = share(PickedMediaCache.getInstance(mContext), sharedResult);
+                    if (result != null) return result;
+                }
+                // Other copy failed, or its result is gone already
+                return copyMedia(cr, src);
+            }
+            CopyResult result = null;
+            try {
+                result = copyMedia(cr, src);
+                return result;
+            } finally {
+                if (owned != null) {
+                    sInFlightCopies.remove(mCopyKeyPrefix + src, owned);
+                    owned.complete(result);
+                }
+            }
+        }
+
+        /**
+         * @return Result sharing file of {@code shared}, pinned once more so either import can
+         * release its own, or null if file of {@code shared} is gone
+         */
+        @Nullable
+        private CopyResult share(@NonNull final PickedMediaCache cache,
+                                 @NonNull final CopyResult shared)
+                throws IOException, InterruptedException {
+            if (mFuture.isCancelled()) throw new InterruptedException();
+            final File source = cache.getFile(shared.uri);
+            // Released by its owner meanwhile
+            if (source == null || !cache.pinIfExists(source)) return null;
+            final CopyResult result = new CopyResult(shared.uri, shared.mimeType);
+            result.bytes = source.length();
+            result.cacheHit = true;
+            // Counted as copied so progress still reaches total
+            mBytesCopied.addAndGet(result.bytes);
+            return probe(cache, result);
+        }
+
+        private CopyResult copyMedia(@NonNull final ContentResolver cr, @NonNull final Uri src)
+                throws IOException, InterruptedException {
+            if (mFuture.isCancelled()) throw new InterruptedException();
+            final PickedMediaCache cache = PickedMediaCache.getInstance(mContext);
+            if (mJournal != null) {
+                final CopyResult journaled = takeJournaledCopy(cache, src);
+                if (journaled != null) return journaled;
+            }
+            if (mDeleteSource) {
+                final File pickedMediaFile = cache.getFile(src);
+                if (pickedMediaFile != null) {
+                    final long length = pickedMediaFile.length();
+                    final CopyResult result = adoptMedia(cr, cache, src, pickedMediaFile);
+                    if (result != null) {
+                        // Counted as copied so progress still reaches total
+                        mBytesCopied.addAndGet(length);
+                        final CopyResult adopted = shouldDownsample() ? downsample(cache, result) : result;
+                        if (mJournal != null) {
+                            mJournal.onCopyFinished(src, adopted.uri, adopted.mimeType);
+                        }
+                        adopted.bytes = length;
+                        adopted.cacheHit = true;
+                        return probe(cache, adopted);
+                    }
+                }
+            }
+            InputStream is = null;
+            Closeable downloading = null;
+            FileOutputStream os = null;
+            Uri targetUri = null;
+            boolean succeeded = false;
+            try {
+                String mimeType;
+                long sniffTime = 0;
+                ImportJournal.Item partial = null;
+                final String scheme = src.getScheme();
+                if (SCHEME_HTTP.equals(scheme) || SCHEME_HTTPS.equals(scheme)) {
+                    final NetworkStreamDownloader downloader = mStreamDownloaderFactory.create(mContext);
+                    // Registered before connecting, so cancel can abort connection and retries
+                    downloading = new Closeable() {
+                        @Override
+                        public void close() {
+                            downloader.cancel();
+                        }
+                    };
+                    mOpenStreams.add(downloading);
+                    if (mFuture.isCancelled()) throw new InterruptedIOException("Import canceled");
+                    final NetworkStreamDownloader.DownloadResult result = downloader.get(src);
+                    is = result.getStream();
+                    mimeType = result.getMimeType();
+                    if (result.getContentLength() >= 0) {
+                        mTotalBytes.addAndGet(result.getContentLength());
+                        mUnknownSizeCount.decrementAndGet();
+                    }
+                } else if (SCHEME_DATA.equals(scheme)) {
+                    final StreamingDataUri dataUri = DataUri.parseStreaming(src.toString(),
+                            Charset.defaultCharset());
+                    is = dataUri.openStream();
+                    mimeType = dataUri.getMime();
+                } else {
+                    is = cr.openInputStream(src);
+                    final long getTypeStart = System.nanoTime();
+                    mimeType = cr.getType(src);
+                    sniffTime = System.nanoTime() - getTypeStart;
+                    if (is != null && mJournal != null) {
+                        partial = seekToPartialCopy(cache, src, is);
+                    }
+                }
+                if (is == null) throw new IOException("InputStream is null");
+                mOpenStreams.add(is);
+                // Canceled before stream was registered
+                if (mFuture.isCancelled()) throw new InterruptedIOException("Import canceled");
+                final MessageDigest digest = mDeduplicate ? PNCUtils.createContentDigest() : null;
+                // Downloader writes it into cache itself, so it's only read through, and taken over
+                final SegmentedNetworkStreamDownloader.SegmentedInputStream downloaded =
+                        is instanceof SegmentedNetworkStreamDownloader.SegmentedInputStream
+                                ? (SegmentedNetworkStreamDownloader.SegmentedInputStream) is : null;
+                File targetFile;
+                final String extension;
+                final long offset;
+                if (partial != null) {
+                    // Type was detected before process was killed
+                    mimeType = partial.mimeType;
+                    extension = mimeType != null ? MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType) : null;
+                    targetFile = partial.file;
+                    targetUri = cache.getUri(targetFile);
+                    offset = partial.committed;
+                    os = new FileOutputStream(targetFile, true);
+                    // Bytes after last commit may not have reached disk
+                    os.getChannel().truncate(offset);
+                    if (digest != null) {
+                        updateDigest(digest, targetFile, offset);
+                    }
+                    mCopyListener.onBytesCopied(offset);
+                } else {
+                    // Prefix is read from the stream being copied, so source is never opened twice
+                    final byte[] prefix = new byte[MediaTypeSniffer.PREFIX_LENGTH];
+                    final int prefixLength = MediaTypeSniffer.readPrefix(is, prefix);
+                    if (mimeType == null || MIME_TYPE_OCTET_STREAM.equals(mimeType)) {
+                        final long sniffStart = System.nanoTime();
+                        final String sniffed = MediaTypeSniffer.sniff(prefix, prefixLength);
+                        if (sniffed != null) {
+                            mimeType = sniffed;
+                        }
+                        sniffTime += System.nanoTime() - sniffStart;
+                    }
+                    Metrics.emit(MediaPickerMetrics.STAGE_SNIFF, sniffTime, -1, scheme, 1, null, false);
+                    extension = mimeType != null ? MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType) : null;
+                    offset = prefixLength;
+                    if (downloaded != null) {
+                        targetFile = null;
+                    } else {
+                        targetFile = cache.createFile(extension);
+                        targetUri = cache.getUri(targetFile);
+                        os = new FileOutputStream(targetFile);
+                        os.write(prefix, 0, prefixLength);
+                    }
+                    if (digest != null) {
+                        digest.update(prefix, 0, prefixLength);
+                    }
+                    mCopyListener.onBytesCopied(prefixLength);
+                }
+                // Remote and data sources can't be seeked, so they're not worth journaling
+                final boolean resumable = mJournal != null && (ContentResolver.SCHEME_CONTENT.equals(scheme)
+                        || ContentResolver.SCHEME_FILE.equals(scheme));
+                if (resumable && partial == null) {
+                    mJournal.onCopyStarted(src, targetFile, mimeType);
+                }
+                final PNCUtils.CopyListener listener = resumable ? new CommitListener(src, os, offset)
+                        : mCopyListener;
+                final long copied = offset + PNCUtils.copyStream(is, os != null ? os : DISCARD_OUTPUT,
+                        digest, listener);
+                if (downloaded != null) {
+                    targetFile = downloaded.takeFile();
+                    targetUri = cache.getUri(targetFile);
+                } else {
+                    os.close();
+                    os = null;
+                }
+                boolean cacheHit = false;
+                if (digest != null) {
+                    final File file = cache.deduplicate(targetFile, PNCUtils.toHexString(digest.digest()), extension);
+                    cacheHit = !file.equals(targetFile);
+                    targetUri = cache.getUri(file);
+                }
+                CopyResult result = new CopyResult(targetUri, mimeType);
+                if (shouldDownsample()) {
+                    result = downsample(cache, result);
+                }
+                if (mJournal != null) {
+                    mJournal.onCopyFinished(src, result.uri, result.mimeType);
+                }
+                // Deleted once journaled, so copy is never lost with its source
+                if (mDeleteSource) {
+                    try {
+                        PNCUtils.deleteMedia(mContext, src);
+                    } catch (SecurityException e) {
+                        Log.w(LOGTAG, "WRITE_EXTERNAL_STORAGE permission is needed for deleting media", e);
+                    }
+                }
+                result.bytes = copied;
+                result.cacheHit = cacheHit;
+                succeeded = true;
+                return probe(cache, result);
+            } finally {
+                PNCUtils.closeSilently(os);
+                if (is != null) {
+                    mOpenStreams.remove(is);
+                    PNCUtils.closeSilently(is);
+                }
+                if (downloading != null) {
+                    mOpenStreams.remove(downloading);
+                }
+                if (!succeeded && targetUri != null) {
+                    // Don't leave incomplete file in cache
+                    cache.release(targetUri);
+                }
+                if (!succeeded && mJournal != null) {
+                    mJournal.onCopyFailed(src);
+                }
+            }
+        }
+
+        /**
+         * Commits copied bytes to journal every {@link ImportJournal#COMMIT_INTERVAL}, after
+         * syncing them to disk so journal never claims bytes that could be lost
+         */
+        private class CommitListener implements PNCUtils.CopyListener {
+            private final Uri mSource;
+            private final FileOutputStream mOutput;
+            private long mWritten, mCommitted;
+
+            CommitListener(@NonNull final Uri source, @NonNull final FileOutputStream output,
+                           final long offset) {
+                mSource = source;
+                mOutput = output;
+                mWritten = offset;
+                mCommitted = offset;
+            }
+
+            @Override
+            public void onBytesCopied(final long count) throws IOException {
+                mCopyListener.onBytesCopied(count);
+                mWritten += count;
+                if (mWritten - mCommitted < ImportJournal.COMMIT_INTERVAL) return;
+                mOutput.getFD().sync();
+                mJournal.onCommitted(mSource, mWritten);
+                mCommitted = mWritten;
+            }
+        }
+
+        /**
+         * Takes result of {@code src} copied before process was killed
+         *
+         * @return Result, or null if there's none or it's gone
+         */
+        @Nullable
+        private CopyResult takeJournaledCopy(@NonNull final PickedMediaCache cache,
+                                             @NonNull final Uri src) {
+            final ImportJournal.Item item = mJournal.takeFinishedCopy(src);
+            if (item == null || item.result == null) return null;
+            final File file = cache.getFile(item.result);
+            if (file == null) return null;
+            cache.pin(file);
+            final long length = file.length();
+            // Counted as copied so progress still reaches total
+            mBytesCopied.addAndGet(length);
+            final CopyResult result = new CopyResult(item.result, item.mimeType);
+            result.bytes = length;
+            result.cacheHit = true;
+            return probe(cache, result);
+        }
+
+        /**
+         * Moves {@code is} past bytes of {@code src} committed before process was killed. Only
+         * sources backed by regular files can be resumed, as they can be seeked.
+         *
+         * @return Partial copy to continue, or null if there's none or it can't be resumed
+         */
+        @Nullable
+        private ImportJournal.Item seekToPartialCopy(@NonNull final PickedMediaCache cache,
+                                                     @NonNull final Uri src,
+                                                     @NonNull final InputStream is) {
+            final ImportJournal.Item item = mJournal.getPartialCopy(src);
+            if (item == null || item.file == null) return null;
+            if (is instanceof FileInputStream && item.file.length() >= item.committed) {
+                try {
+                    final FileChannel channel = ((FileInputStream) is).getChannel();
+                    // Otherwise source changed since
+                    if (channel.size() >= item.committed) {
+                        channel.position(item.committed);
+                        cache.pin(item.file);
+                        return item;
+                    }
+                } catch (IOException e) {
+                    // Pipe, not seekable
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            item.file.delete();
+            mJournal.onCopyFailed(src);
+            return null;
+        }
+
+        /**
+         * Feeds first {@code length} bytes of {@code file} to {@code digest}
+         */
+        private static void updateDigest(@NonNull final MessageDigest digest, @NonNull final File file,
+                                         final long length) throws IOException {
+            final InputStream is = new FileInputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                long remaining = length;
+                while (remaining > 0) {
+                    final int count = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (count == -1) throw new IOException("Unexpected end of " + file);
+                    digest.update(buffer, 0, count);
+                    remaining -= count;
+                }
+            } finally {
+                PNCUtils.closeSilently(is);
+            }
+        }
+
+        /**
+         * Source is a file we created and is going to be deleted anyway, so just use it (renamed
+         * if extension doesn't match) instead of copying the bytes
+         *
+         * @return Result with adopted file, or null if it can't be renamed
+         */
+        @Nullable
+        private static CopyResult adoptMedia(@NonNull final ContentResolver cr,
+                                             @NonNull final PickedMediaCache cache,
+                                             @NonNull final Uri src, @NonNull final File file)
+                throws IOException {
+            final long sniffStart = System.nanoTime();
+            String mimeType = cr.getType(src);
+            if (mimeType == null) {
+                mimeType = sniffMimeType(file);
+            }
+            Metrics.emit(MediaPickerMetrics.STAGE_SNIFF, System.nanoTime() - sniffStart, -1,
+                    src.getScheme(), 1, null, false);
+            final String extension = mimeType != null ? MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType) : null;
+            if (extension != null && file.getName().endsWith("." + extension)) {
+                cache.pin(file);
+                return new CopyResult(cache.getUri(file), mimeType);
+            }
+            final File target = cache.createFile(extension);
+            if (!file.renameTo(target)) {
+                cache.unpin(target);
+                return null;
+            }
+            cache.unpin(file);
+            return new CopyResult(cache.getUri(target), mimeType);
+        }
+
+        private boolean shouldDownsample() {
+            return mDownsampleWidth > 0 && mDownsampleHeight > 0;
+        }
+
+        /**
+         * Replaces image of {@code result} with one fits maximum size
+         *
+         * @return Result of downsampled image, or {@code result} itself if it needn't or can't be
+         * downsampled
+         */
+        @NonNull
+        private CopyResult downsample(@NonNull final PickedMediaCache cache,
+                                      @NonNull final CopyResult result) throws IOException {
+            final File source = cache.getFile(result.uri);
+            if (source == null) return result;
+            final Bitmap.CompressFormat format = mOutputFormat != null ? mOutputFormat
+                    : ImageDownsampler.getCompressFormat(result.mimeType);
+            if (format == null || result.mimeType == null || !result.mimeType.startsWith("image/")) {
+                return result;
+            }
+            final int quality = mOutputQuality >= 0 ? mOutputQuality : ImageDownsampler.DEFAULT_QUALITY;
+            final String mimeType = ImageDownsampler.getMimeType(format);
+            final String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+            final File target = cache.createFile(extension);
+            final Uri targetUri = cache.getUri(target);
+            boolean downsampled = false;
+            try {
+                downsampled = ImageDownsampler.downsample(source, target, mDownsampleWidth,
+                        mDownsampleHeight, format, quality);
+            } finally {
+                if (!downsampled) {
+                    cache.release(targetUri);
+                }
+            }
+            if (!downsampled) return result;
+            cache.release(result.uri);
+            return new CopyResult(targetUri, mimeType);
+        }
+
+        /**
+         * Reads dimensions, orientation and duration of imported file, while it's still likely in
+         * page cache
+         */
+        @NonNull
+        private static CopyResult probe(@NonNull final PickedMediaCache cache,
+                                        @NonNull final CopyResult result) {
+            final File file = cache.getFile(result.uri);
+            if (file != null) {
+                result.mediaInfo = MediaProbe.probe(file, result.mimeType);
+            }
+            return result;
+        }
+
+        private void closeOpenStreams() {
+            // Closing network streams may block, and cancel is usually called on main thread.
+            // Not queued to import executor, whose threads may be the ones blocked reading
+            ImportExecutor.newThreadFactory("PickNCrop-Cancel").newThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (Closeable stream : mOpenStreams) {
+                        PNCUtils.closeSilently(stream);
+                    }
+                }
+            }).start();
+        }
+
+        /**
+         * Called by {@link FutureTask#done()}, items finishing after that release their own
+         * results
+         *
+         * @return True if canceled
+         */
+        private boolean discardIfCanceled() {
+            if (!mFuture.isCancelled()) return false;
+            final CopyResult[] results = takeCompleted();
+            if (results != null) {
+                discardResults(results);
+            }
+            return true;
+        }
+
+        @Nullable
+        private synchronized CopyResult[] takeCompleted() {
+            final CopyResult[] results = mCompleted;
+            mCompleted = null;
+            return results;
+        }
+
+        private void discardResults(@NonNull final CopyResult[] results) {
+            final PickedMediaCache cache = PickedMediaCache.getInstance(mContext);
+            for (CopyResult result : results) {
+                if (result == null) continue;
+                cache.release(result.uri);
+            }
+        }
+
+        private void itemDone() {
+            mItemsDone.incrementAndGet();
+            publishImportProgress(true);
+        }
+
+        /**
+         * Throttled to once per {@link #PROGRESS_INTERVAL} unless forced, so it's cheap enough to
+         * be called for every chunk copied
+         */
+        private void publishImportProgress(final boolean force) {
+            if (mCallback == null) return;
+            final long now = SystemClock.elapsedRealtime();
+            final long last = mLastProgressTime.get();
+            if (!force && now - last < PROGRESS_INTERVAL) return;
+            if (!mLastProgressTime.compareAndSet(last, now) && !force) return;
+            final long totalBytes = mUnknownSizeCount.get() > 0 ? -1 : mTotalBytes.get();
+            final ImportProgress progress = new ImportProgress(mBytesCopied.get(), totalBytes,
+                    mItemsDone.get(), mItemCount, now - mStartTime);
+            synchronized (mThroughputMeter) {
+                mThroughputMeter.update(progress);
+            }
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onProgress(progress);
+                }
+            });
+        }
+
+        private void onDone() {
+            if (discardIfCanceled()) {
+                reportImport(-1, CancellationException.class);
+                if (mCallback == null) return;
+                dispatch(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onCanceled();
+                    }
+                });
+                return;
+            }
+            takeCompleted();
+            List<MediaInfo> media = null;
+            Exception exception = null;
+            try {
+                media = mFuture.get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                exception = cause instanceof Exception ? (Exception) cause : e;
+            } catch (InterruptedException e) {
+                // Never happens as task is done
+                exception = e;
+            }
+            reportImport(media != null ? media.size() : 0, exception != null ? exception.getClass() : null);
+            if (mCallback == null) return;
+            final List<MediaInfo> result = media;
+            final Exception error = exception;
+            dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    if (result != null) {
+                        mCallback.onImported(result);
+                    } else {
+                        mCallback.onFailed(error);
+                    }
+                }
+            });
+        }
+
+        private void reportImport(final int itemCount, @Nullable final Class<? extends Throwable> errorClass) {
+            // Canceled before started
+            final long startNanos = mStartNanos;
+            final long duration = startNanos != 0 ? System.nanoTime() - startNanos : 0;
+            Metrics.emit(MediaPickerMetrics.STAGE_IMPORT, duration, mBytesCopied.get(), null,
+                    itemCount >= 0 ? itemCount : mSourceUris.length, errorClass, false);
+        }
+
+        private void dispatch(@NonNull final Runnable runnable) {
+            if (mCallbackExecutor != null) {
+                mCallbackExecutor.execute(runnable);
+            } else {
+                runnable.run();
+            }
+        }
+
+        /**
+         * @return Size reported by provider, or -1 if unknown without opening {@code uri}
+         */
+        private static long querySize(@NonNull final ContentResolver cr, @NonNull final Uri uri) {
+            final String scheme = uri.getScheme();
+            if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+                final String path = uri.getPath();
+                if (path == null) return -1;
+                final File file = new File(path);
+                return file.isFile() ? file.length() : -1;
+            } else if (!ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+                return -1;
+            }
+            Cursor cursor = null;
+            try {
+                cursor = cr.query(uri, new String[]{OpenableColumns.SIZE}, null, null, null);
+                if (cursor == null || !cursor.moveToFirst() || cursor.isNull(0)) return -1;
+                return cursor.getLong(0);
+            } catch (RuntimeException e) {
+                // Some providers don't support OpenableColumns
+                return -1;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        @Nullable
+        private static String sniffMimeType(@NonNull File file) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(file);
+                final byte[] prefix = new byte[MediaTypeSniffer.PREFIX_LENGTH];
+                return MediaTypeSniffer.sniff(prefix, MediaTypeSniffer.readPrefix(is, prefix));
+            } catch (IOException e) {
+                return null;
+            } finally {
+                PNCUtils.closeSilently(is);
+            }
+        }
+    }
+
+    /**
+     * Result of a copy other imports may wait for, they're continued once it's done rather than
+     * blocking a thread
+     */
+    private static class SharedCopy {
+        // Guarded by this
+        private final List<Runnable> mWaiters = new ArrayList<>();
+        private boolean mDone;
+        private CopyResult mResult;
+
+        void complete(@Nullable final CopyResult result) {
+            final List<Runnable> waiters;
+            synchronized (this) {
+                mResult = result;
+                mDone = true;
+                waiters = new ArrayList<>(mWaiters);
+                mWaiters.clear();
+            }
+            for (Runnable waiter : waiters) {
+                waiter.run();
+            }
+        }
+
+        /**
+         * Runs {@code waiter} once copy is done, right away if it's done already. It's run on the
+         * copying thread, so it should only hand work over to another executor.
+         */
+        void whenDone(@NonNull final Runnable waiter) {
+            synchronized (this) {
+                if (!mDone) {
+                    mWaiters.add(waiter);
+                    return;
+                }
+            }
+            waiter.run();
+        }
+
+        /**
+         * @return Result, or null if copy failed
+         */
+        @Nullable
+        synchronized CopyResult getResult() {
+            return mResult;
+        }
+    }
+
+    private static class CopyResult {
+        Uri uri;
+        String mimeType;
+        MediaInfo mediaInfo;
+        long bytes = -1;
+        boolean cacheHit;
+
+        CopyResult(Uri uri, String mimeType) {
+            this.uri = uri;
+            this.mimeType = mimeType;
+        }
+    }
+}
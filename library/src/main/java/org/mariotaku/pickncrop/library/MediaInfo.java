@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.hannesdorfmann.parcelableplease.annotation.ParcelablePlease;
+import com.hannesdorfmann.parcelableplease.annotation.ParcelableThisPlease;
+
+/**
+ * Dimensions, orientation and duration of a picked item, read from its headers while importing.
+ * Results are available through {@link MediaManifest#open(android.content.Context, android.content.Intent)}.
+ */
+@ParcelablePlease
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class MediaInfo implements Parcelable {
+
+    public static final Creator<MediaInfo> CREATOR = new Creator<MediaInfo>() {
+        @Override
+        public MediaInfo createFromParcel(final Parcel source) {
+            return new MediaInfo(source);
+        }
+
+        @Override
+        public MediaInfo[] newArray(final int size) {
+            return new MediaInfo[size];
+        }
+    };
+
+    @ParcelableThisPlease
+    Uri uri;
+    @ParcelableThisPlease
+    String mimeType;
+    @ParcelableThisPlease
+    int width;
+    @ParcelableThisPlease
+    int height;
+    @ParcelableThisPlease
+    int orientation;
+    @ParcelableThisPlease
+    long duration;
+
+    MediaInfo(final int width, final int height, final int orientation, final long duration) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.duration = duration;
+    }
+
+    MediaInfo(final Parcel source) {
+        MediaInfoParcelablePlease.readFromParcel(this, source);
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return Width as stored, before {@link #getOrientation()} is applied, or -1 if unknown
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height as stored, before {@link #getOrientation()} is applied, or -1 if unknown
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return One of {@code ExifInterface.ORIENTATION_*} values, rotation of videos is mapped to
+     * them as well
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return Duration in milliseconds, or -1 if not a video or unknown
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        MediaInfoParcelablePlease.writeToParcel(this, dest, flags);
+    }
+
+    @Override
+    public String toString() {
+        return "MediaInfo{" +
+                "uri=" + uri +
+                ", mimeType='" + mimeType + '\'' +
+                ", width=" + width +
+                ", height=" + height +
+                ", orientation=" + orientation +
+                ", duration=" + duration +
+                '}';
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.mariotaku.pickncrop.library;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * If caller allows it with {@link MediaPickerActivity.IntentBuilder#allowMediaManifest(boolean)},
+ * results of large selections are written to a manifest file in {@link PickedMediaCache}, and
+ * the result Intent carries only its Uri in {@link MediaPickerActivity#EXTRA_MEDIA_MANIFEST}.
+ * This keeps the Intent the same size regardless of item count, far from Binder transaction
+ * limit. {@link #open(Context, Intent)} reads results either way:
+ * <pre>
+ * final MediaManifest.Reader reader = MediaManifest.open(context, data);
+ * try {
+ *     List&lt;MediaInfo&gt; page;
+ *     while (!(page = reader.next(50)).isEmpty()) {
+ *         ...
+ *     }
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ * Manifest belongs to caller like imported media, release it with
+ * {@link PickedMediaCache#release(Uri)} once read.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class MediaManifest {
+
+    /**
+     * Results of more items than this are written to a manifest, if caller allows it
+     */
+    static final int MAX_INLINE_RESULTS = 100;
+
+    private static final String HEADER = "pnc-media-manifest";
+    private static final int VERSION = 1;
+    private static final String EXTENSION = "manifest";
+    private static final String SEPARATOR = "\t";
+
+    private MediaManifest() {
+    }
+
+    /**
+     * @return Reader of results in {@code data}, whether they're in a manifest or in the Intent
+     * @throws IOException If manifest can't be opened or is not valid
+     */
+    @NonNull
+    public static Reader open(@NonNull Context context, @NonNull Intent data) throws IOException {
+        final Uri manifest = getManifestUri(data);
+        if (manifest == null) return new Reader(MediaPickerActivity.getMediaInfo(data));
+        final InputStream is = context.getContentResolver().openInputStream(manifest);
+        if (is == null) throw new IOException("InputStream is null");
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            final String header = reader.readLine();
+            final String[] fields = header != null ? header.split(SEPARATOR) : new String[0];
+            if (fields.length != 3 || !HEADER.equals(fields[0])) {
+                throw new IOException("Not a media manifest");
+            }
+            if (Integer.parseInt(fields[1]) != VERSION) {
+                throw new IOException("Unsupported manifest version " + fields[1]);
+            }
+            return new Reader(reader, Integer.parseInt(fields[2]));
+        } catch (IOException | NumberFormatException e) {
+            PNCUtils.closeSilently(reader);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    /**
+     * @return Uri of manifest in {@code data}, or null if results are in the Intent itself
+     */
+    @Nullable
+    public static Uri getManifestUri(@NonNull Intent data) {
+        return data.getParcelableExtra(MediaPickerActivity.EXTRA_MEDIA_MANIFEST);
+    }
+
+    /**
+     * Writes {@code media} to a pinned file in {@code cache}
+     *
+     * @return Uri of written manifest
+     */
+    @NonNull
+    static Uri write(@NonNull PickedMediaCache cache, @NonNull List<MediaInfo> media)
+            throws IOException {
+        final File file = cache.createFile(EXTENSION);
+        final Uri uri = cache.getUri(file);
+        Writer writer = null;
+        boolean succeeded = false;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            writer.write(HEADER + SEPARATOR + VERSION + SEPARATOR + media.size() + "\n");
+            for (MediaInfo info : media) {
+                // Uri strings are encoded, so they never contain separators
+                writer.write(info.getUri() + SEPARATOR
+                        + (info.getMimeType() != null ? info.getMimeType() : "") + SEPARATOR
+                        + info.getWidth() + SEPARATOR + info.getHeight() + SEPARATOR
+                        + info.getOrientation() + SEPARATOR + info.getDuration() + "\n");
+            }
+            writer.close();
+            writer = null;
+            succeeded = true;
+        } finally {
+            PNCUtils.closeSilently(writer);
+            if (!succeeded) {
+                cache.release(uri);
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * Reads results one item or one page at a time, so large results are never held in memory
+     * all at once
+     */
+    public static final class Reader implements Closeable {
+
+        private final BufferedReader mReader;
+        private final Iterator<MediaInfo> mIterator;
+        private final int mCount;
+
+        Reader(@NonNull List<MediaInfo> media) {
+            mReader = null;
+            mIterator = media.iterator();
+            mCount = media.size();
+        }
+
+        Reader(@NonNull BufferedReader reader, int count) {
+            mReader = reader;
+            mIterator = null;
+            mCount = count;
+        }
+
+        /**
+         * @return Total number of items, including ones read already
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return Next item, or null if all are read
+         */
+        @Nullable
+        public MediaInfo next() throws IOException {
+            if (mIterator != null) return mIterator.hasNext() ? mIterator.next() : null;
+            final String line = mReader.readLine();
+            if (line == null) return null;
+            final String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length != 6) throw new IOException("Malformed manifest line: " + line);
+            try {
+                final MediaInfo info = new MediaInfo(Integer.parseInt(fields[2]),
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                        Long.parseLong(fields[5]));
+                info.uri = Uri.parse(fields[0]);
+                info.mimeType = fields[1].isEmpty() ? null : fields[1];
+                return info;
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed manifest line: " + line, e);
+            }
+        }
+
+        /**
+         * @return Up to {@code max} next items, empty if all are read
+         */
+        @NonNull
+        public List<MediaInfo> next(int max) throws IOException {
+            final List<MediaInfo> page = new ArrayList<>(Math.min(max, mCount));
+            MediaInfo info;
+            while (page.size() < max && (info = next()) != null) {
+                page.add(info);
+            }
+            return page;
+        }
+
+        @Override
+        public void close() {
+            PNCUtils.closeSilently(mReader);
+        }
+    }
+}
@@ -23,28 +23,23 @@ import android.app.DialogFragment;
 import android.app.Fragment;
 import android.content.ActivityNotFoundException;
 import android.content.ClipData;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.StringDef;
 import android.support.annotation.WorkerThread;
-import android.support.v4.content.FileProvider;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.Pair;
 import android.webkit.MimeTypeMap;
 import android.widget.Toast;
 
@@ -52,24 +47,17 @@ import com.theartofdev.edmodo.cropper.CropImage;
 import com.theartofdev.edmodo.cropper.CropImageActivity;
 import com.theartofdev.edmodo.cropper.CropImageView.RequestSizeOptions;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.lang.ref.WeakReference;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.UUID;
-
-import repackaged.com.github.ooxi.jdatauri.DataUri;
-
-import static android.os.Environment.getExternalStorageState;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
 
 public class MediaPickerActivity extends Activity {
 
@@ -83,6 +71,11 @@ public class MediaPickerActivity extends Activity {
     private static final String EXTRA_CROP_ACTIVITY_CLASS = "crop_activity_class";
     private static final String EXTRA_STREAM_DOWNLOADER_CLASS = "stream_downloader_class";
     private static final String EXTRA_TEMP_IMAGE_URI = "temp_image_uri";
+    private static final String EXTRA_CROP_SOURCE_URI = "crop_source_uri";
+    private static final String EXTRA_CREATE_TIME = "create_time";
+    private static final String EXTRA_STAGE_START_TIME = "stage_start_time";
+    private static final String EXTRA_IMPORT_SESSION_ID = "import_session_id";
+    private static final String EXTRA_IMPORTING = "importing";
     private static final String INTENT_PACKAGE_PREFIX = BuildConfig.APPLICATION_ID + ".";
     public static final String INTENT_ACTION_TAKE_PHOTO = INTENT_PACKAGE_PREFIX + "TAKE_PHOTO";
     public static final String INTENT_ACTION_CAPTURE_VIDEO = INTENT_PACKAGE_PREFIX + "CAPTURE_VIDEO";
@@ -96,9 +89,6 @@ public class MediaPickerActivity extends Activity {
     public static final String INTENT_ACTION_PICK_MEDIA = INTENT_PACKAGE_PREFIX + "PICK_MEDIA";
     public static final String INTENT_ACTION_GET_MEDIA = INTENT_PACKAGE_PREFIX + "GET_MEDIA";
 
-    private static final String SCHEME_HTTP = "http";
-    private static final String SCHEME_HTTPS = "https";
-    private static final String SCHEME_DATA = "data";
     private static final String LOGTAG = "PickNCrop";
 
     public static final String EXTRA_ASPECT_X = "aspect_x";
@@ -114,16 +104,53 @@ public class MediaPickerActivity extends Activity {
     public static final String EXTRA_LOCAL_ONLY = "local_only";
     public static final String EXTRA_OUTPUT_FORMAT = "output_format";
     public static final String EXTRA_OUTPUT_QUALITY = "output_quality";
+    public static final String EXTRA_PARALLELISM = "parallelism";
+    public static final String EXTRA_FAILURE_POLICY = "failure_policy";
+    public static final String EXTRA_DEDUPLICATE = "deduplicate";
+    public static final String EXTRA_RESIZE_ONLY = "resize_only";
+    public static final String EXTRA_ALLOW_MEDIA_MANIFEST = "allow_media_manifest";
+    public static final String EXTRA_MEDIA_INFO = "media_info";
+    /**
+     * Uri of {@link MediaManifest} of results, set instead of {@link #EXTRA_MEDIA_INFO} and
+     * {@link ClipData} when there're more results than fit in an Intent, only if caller allowed it
+     * with {@link #EXTRA_ALLOW_MEDIA_MANIFEST}
+     */
+    public static final String EXTRA_MEDIA_MANIFEST = "media_manifest";
+    /**
+     * Number of results, whether they're in Intent or in manifest
+     */
+    public static final String EXTRA_MEDIA_COUNT = "media_count";
 
     public static final String SOURCE_CAMERA = "camera";
     public static final String SOURCE_CAMCORDER = "camcorder";
     public static final String SOURCE_CLIPBOARD = "clipboard";
     public static final String SOURCE_GALLERY = "gallery";
 
-    private CopyMediaTask mTask;
+    /**
+     * Whole import fails if any of the selected items can't be copied
+     */
+    public static final String FAILURE_POLICY_ABORT = "abort";
+    /**
+     * Items can't be copied are dropped from result, import fails only if nothing was copied
+     */
+    public static final String FAILURE_POLICY_SKIP = "skip";
+
+    private static final String TAG_COPYING_IMAGE = "copying_media";
+
+    private static ImportProgress.Listener sImportProgressListener;
+    private static volatile ImportExecutor sImportExecutor;
+
+    private ImportSession mImportSession;
     private Queue<Runnable> mResumeRunnableQueue = new LinkedList<>();
     private boolean mFragmentResumed;
     private Uri mTempImageUri;
+    private Uri mCropSourceUri;
+    // Elapsed realtime as they survive process death
+    private long mCreateTime;
+    private long mStageStartTime;
+    private int mResultCount;
+    private Class<? extends Throwable> mFinishErrorClass = CancellationException.class;
+    private boolean mFinishReported;
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
@@ -133,7 +160,20 @@ public class MediaPickerActivity extends Activity {
 
         if (savedInstanceState != null) {
             mTempImageUri = savedInstanceState.getParcelable(EXTRA_TEMP_IMAGE_URI);
+            mCropSourceUri = savedInstanceState.getParcelable(EXTRA_CROP_SOURCE_URI);
+            mCreateTime = savedInstanceState.getLong(EXTRA_CREATE_TIME);
+            mStageStartTime = savedInstanceState.getLong(EXTRA_STAGE_START_TIME);
+            final String sessionId = savedInstanceState.getString(EXTRA_IMPORT_SESSION_ID);
+            mImportSession = ImportSession.get(sessionId);
+            if (mImportSession != null) {
+                // Imports kept running while this activity was recreated
+                mImportSession.attach(this);
+            } else if (savedInstanceState.getBoolean(EXTRA_IMPORTING) && sessionId != null) {
+                // Process was killed while importing
+                resumeImports(sessionId);
+            }
         } else {
+            mCreateTime = SystemClock.elapsedRealtime();
             if (action == null) {
                 new ExtraSourceDialogFragment().show(getFragmentManager(), "extra_sources");
                 return;
@@ -184,11 +224,11 @@ public class MediaPickerActivity extends Activity {
     @Override
     protected void onActivityResult(final int requestCode, final int resultCode,
                                     @Nullable final Intent data) {
+        deleteIntermediateMedia(requestCode, resultCode);
         final ActivityResult result = handleActivityResult(requestCode, resultCode, data);
+        reportActivityResult(requestCode, result);
         if (result == null) {
-            Intent resultData = new Intent();
-            resultData.putExtra(EXTRA_EXTRAS, getIntent().getBundleExtra(EXTRA_EXTRAS));
-            setResult(RESULT_CANCELED, resultData);
+            setResultCanceled();
             finish();
             return;
         }
@@ -204,6 +244,80 @@ public class MediaPickerActivity extends Activity {
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putParcelable(EXTRA_TEMP_IMAGE_URI, mTempImageUri);
+        outState.putParcelable(EXTRA_CROP_SOURCE_URI, mCropSourceUri);
+        outState.putLong(EXTRA_CREATE_TIME, mCreateTime);
+        outState.putLong(EXTRA_STAGE_START_TIME, mStageStartTime);
+        if (mImportSession != null) {
+            outState.putString(EXTRA_IMPORT_SESSION_ID, mImportSession.getId());
+            outState.putBoolean(EXTRA_IMPORTING, mImportSession.isImporting());
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mImportSession != null) {
+            mImportSession.detach(this);
+            if (isFinishing()) {
+                mImportSession.close();
+            }
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void finish() {
+        if (!mFinishReported) {
+            mFinishReported = true;
+            Metrics.emit(MediaPickerMetrics.STAGE_FINISH, elapsedNanosSince(mCreateTime), -1, null,
+                    mResultCount, mFinishErrorClass, false);
+        }
+        super.finish();
+    }
+
+    private void reportActivityResult(final int requestCode, @Nullable final ActivityResult result) {
+        final String stage = requestCode == REQUEST_CROP ? MediaPickerMetrics.STAGE_CROP
+                : MediaPickerMetrics.STAGE_PICK;
+        Metrics.emit(stage, elapsedNanosSince(mStageStartTime), -1, null,
+                result != null ? result.src.length : 0,
+                result != null ? null : CancellationException.class, false);
+    }
+
+    private static long elapsedNanosSince(final long elapsedRealtime) {
+        if (elapsedRealtime <= 0) return 0;
+        return TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime() - elapsedRealtime);
+    }
+
+    /**
+     * Deletes files in our cache which are no longer needed after camera or crop returns, i.e.
+     * crop input and photos camera failed to write
+     */
+    private void deleteIntermediateMedia(final int requestCode, final int resultCode) {
+        final Uri uri;
+        if (requestCode == REQUEST_CROP) {
+            uri = mCropSourceUri;
+            mCropSourceUri = null;
+        } else if (requestCode == REQUEST_TAKE_PHOTO && resultCode != RESULT_OK) {
+            uri = mTempImageUri;
+            mTempImageUri = null;
+        } else {
+            return;
+        }
+        if (uri == null) return;
+        PickedMediaCache.getInstance(this).release(uri);
+    }
+
+    private void setResultCanceled() {
+        Intent resultData = new Intent();
+        resultData.putExtra(EXTRA_EXTRAS, getIntent().getBundleExtra(EXTRA_EXTRAS));
+        setResult(RESULT_CANCELED, resultData);
+    }
+
+    /**
+     * Called when user cancels progress dialog
+     */
+    void cancelImport() {
+        if (mImportSession == null) return;
+        mImportSession.cancel();
     }
 
     private void queueAfterResumed(Runnable runnable) {
@@ -219,11 +333,67 @@ public class MediaPickerActivity extends Activity {
         }
     }
 
+    /**
+     * Imports selections again after process was killed, items copied or partially copied are
+     * picked up from {@link ImportJournal}
+     */
+    private void resumeImports(@NonNull final String sessionId) {
+        final ImportSession session = ImportSession.resume(this,
+                new MediaImporter(this, getImportExecutor()), sessionId);
+        if (session == null) {
+            dismissProgressDialog(TAG_COPYING_IMAGE);
+            setResultCanceled();
+            finish();
+            return;
+        }
+        mImportSession = session;
+        session.attach(this);
+        for (ImportJournal.Request request : session.getJournaledRequests()) {
+            mediaSelected(request.uris, request.needsCrop, request.deleteSource);
+        }
+    }
+
     private void mediaSelected(final Uri[] uris, final boolean needsCrop, final boolean deleteSource) {
-        final CopyMediaTask task = mTask;
-        if (task != null && task.getStatus() == AsyncTask.Status.RUNNING) return;
-        mTask = new CopyMediaTask(this, uris, needsCrop, deleteSource);
-        mTask.execute();
+        if (mImportSession == null) {
+            mImportSession = ImportSession.create(this, new MediaImporter(this, getImportExecutor()));
+        }
+        final boolean importing = mImportSession.isImporting();
+        final Intent intent = getIntent();
+        // Callers reading results with getMediaUris() alone would only see the first one
+        mImportSession.setWriteManifest(intent.getBooleanExtra(EXTRA_ALLOW_MEDIA_MANIFEST, false));
+        final MediaImporter.Options options = new MediaImporter.Options()
+                .parallelism(intent.getIntExtra(EXTRA_PARALLELISM, MediaImporter.DEFAULT_PARALLELISM))
+                .failurePolicy(intent.getStringExtra(EXTRA_FAILURE_POLICY))
+                .deduplicate(intent.getBooleanExtra(EXTRA_DEDUPLICATE, false))
+                .deleteSource(deleteSource)
+                .outputQuality(intent.getIntExtra(EXTRA_OUTPUT_QUALITY, -1));
+        try {
+            options.streamDownloader(getStreamDownloaderFactory());
+            final String outputFormat = intent.getStringExtra(EXTRA_OUTPUT_FORMAT);
+            if (outputFormat != null) {
+                options.outputFormat(Bitmap.CompressFormat.valueOf(outputFormat));
+            }
+            if (needsCrop) {
+                // Fails before copying rather than after if crop activity is misconfigured
+                getCropActivityClass();
+            }
+        } catch (IllegalArgumentException e) {
+            // Called from onActivityResult, throwing would crash the calling app
+            Log.e(LOGTAG, "Invalid class or output format in intent", e);
+            onImportFailed(e);
+            return;
+        }
+        // Images going to crop activity are resized there, crop results are sized already.
+        // Queued selections are returned with earlier ones, so they won't be cropped either
+        final boolean multiple = uris.length > 1 || importing;
+        if (needsCrop && (multiple || intent.getBooleanExtra(EXTRA_RESIZE_ONLY, false))) {
+            options.maximumSize(intent.getIntExtra(EXTRA_MAX_WIDTH, -1), intent.getIntExtra(EXTRA_MAX_HEIGHT, -1));
+        }
+        if (mImportSession.importMedia(uris, options, needsCrop) && !importing
+                && getFragmentManager().findFragmentByTag(TAG_COPYING_IMAGE) == null) {
+            // Dialog is restored with activity when imports are resumed
+            ProgressDialogFragment.show(this, TAG_COPYING_IMAGE);
+        }
     }
 
     @Nullable
@@ -258,7 +428,8 @@ public class MediaPickerActivity extends Activity {
             case REQUEST_TAKE_PHOTO: {
                 if (mTempImageUri == null) return null;
                 needsCrop = true;
-                deleteSource = false;
+                // Camera wrote into our own cache, so the file can be adopted directly
+                deleteSource = true;
                 src = new Uri[]{mTempImageUri};
                 break;
             }
@@ -301,6 +472,7 @@ public class MediaPickerActivity extends Activity {
                     mimeTypesList.toArray(new String[mimeTypesList.size()]));
             getContentIntent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, allowMultiple);
             getContentIntent.putExtra(Intent.EXTRA_LOCAL_ONLY, localOnly);
+            mStageStartTime = SystemClock.elapsedRealtime();
             startActivityForResult(getContentIntent, REQUEST_OPEN_DOCUMENT);
             return;
         }
@@ -308,6 +480,7 @@ public class MediaPickerActivity extends Activity {
         getContentIntent.setType("image/*");
         getContentIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         try {
+            mStageStartTime = SystemClock.elapsedRealtime();
             startActivityForResult(getContentIntent, REQUEST_GET_CONTENT);
         } catch (final ActivityNotFoundException e) {
             // Ignore
@@ -341,6 +514,7 @@ public class MediaPickerActivity extends Activity {
             mTempImageUri = uri;
         }
         try {
+            mStageStartTime = SystemClock.elapsedRealtime();
             startActivityForResult(captureIntent, requestCode);
         } catch (final ActivityNotFoundException e) {
             // Ignore
@@ -350,30 +524,145 @@ public class MediaPickerActivity extends Activity {
 
     @NonNull
     private Uri createTempMediaUri(String extension) throws IOException {
-        if (extension == null) {
-            extension = "tmp";
-        }
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
-            if (!getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-                throw new IOException("SD card not mounted");
+        final PickedMediaCache cache = PickedMediaCache.getInstance(this);
+        return cache.getUri(cache.createFile(extension));
+    }
+
+    /**
+     * Sets listener receiving progress of imports, it's held strongly so it should be set to null
+     * when no longer needed
+     */
+    public static void setImportProgressListener(@Nullable ImportProgress.Listener listener) {
+        sImportProgressListener = listener;
+    }
+
+    /**
+     * Sets executor imports run on, e.g. a wrapped I/O pool of host app. Pass null to use
+     * {@link ImportExecutor#getDefault()}
+     */
+    public static void setImportExecutor(@Nullable ImportExecutor executor) {
+        sImportExecutor = executor;
+    }
+
+    /**
+     * @return Executor imports run on, for inspecting its queue depth and busy time
+     */
+    @NonNull
+    public static ImportExecutor getImportExecutor() {
+        final ImportExecutor executor = sImportExecutor;
+        return executor != null ? executor : ImportExecutor.getDefault();
+    }
+
+    /**
+     * Sets metrics receiving timing of picking and importing in this process, pass a
+     * {@link MetricsAggregator} to keep them in memory, or null to stop collecting
+     */
+    public static void setMetrics(@Nullable MediaPickerMetrics metrics) {
+        Metrics.set(metrics);
+    }
+
+    /**
+     * Called by {@link ImportSession} when all selections are imported
+     *
+     * @param manifest Manifest of {@code media} written by session, or null if results are to be
+     *                 put in Intent
+     */
+    void onMediaImported(@NonNull final List<MediaInfo> media, @Nullable final Uri manifest,
+                         final boolean needsCrop) {
+        dismissProgressDialog(TAG_COPYING_IMAGE);
+        final Intent callingIntent = getIntent();
+        final boolean supportsCrop = media.size() == 1;
+        final boolean hasCropParameters = !callingIntent.getBooleanExtra(EXTRA_RESIZE_ONLY, false)
+                && (callingIntent.hasExtra(EXTRA_ASPECT_X) && callingIntent.hasExtra(EXTRA_ASPECT_Y)
+                || callingIntent.hasExtra(EXTRA_MAX_WIDTH) && callingIntent.hasExtra(EXTRA_MAX_HEIGHT));
+        if (supportsCrop && needsCrop && hasCropParameters) {
+            final MediaInfo source = media.get(0);
+            final String mimeType = source.getMimeType();
+            final String extension = mimeType != null ? MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType) : null;
+            final Uri tempImageUri;
+            try {
+                tempImageUri = createTempMediaUri(extension);
+            } catch (IOException e) {
+                Toast.makeText(this, R.string.pnc__error_cannot_open_file, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            CropImage.ActivityBuilder crop = CropImage.activity(source.getUri());
+            crop.setAutoZoomEnabled(true);
+            crop.setMultiTouchEnabled(true);
+            crop.setOutputUri(tempImageUri);
+            final int aspectX = callingIntent.getIntExtra(EXTRA_ASPECT_X, -1);
+            final int aspectY = callingIntent.getIntExtra(EXTRA_ASPECT_Y, -1);
+            if (aspectX > 0 && aspectY > 0) {
+                crop.setAspectRatio(aspectX, aspectY);
+            }
+            final int maxWidth = callingIntent.getIntExtra(EXTRA_MAX_WIDTH, -1);
+            final int maxHeight = callingIntent.getIntExtra(EXTRA_MAX_HEIGHT, -1);
+            if (maxWidth > 0 && maxHeight > 0) {
+                crop.setRequestedSize(maxWidth, maxHeight, RequestSizeOptions.RESIZE_FIT);
+            }
+            final String outputFormat = callingIntent.getStringExtra(EXTRA_OUTPUT_FORMAT);
+            if (outputFormat != null) {
+                crop.setOutputCompressFormat(Bitmap.CompressFormat.valueOf(outputFormat));
             }
-            final File extCacheDir = getExternalCacheDir();
-            final File extPickedMediaDir = new File(extCacheDir, "picked-media");
-            if (!extPickedMediaDir.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                extPickedMediaDir.mkdirs();
+            final int outputQuality = callingIntent.getIntExtra(EXTRA_OUTPUT_QUALITY, -1);
+            if (outputQuality >= 0) {
+                crop.setOutputCompressQuality(outputQuality);
+            }
+            mCropSourceUri = source.getUri();
+            mStageStartTime = SystemClock.elapsedRealtime();
+            startActivityForResult(crop.getIntent(this, getCropActivityClass()), REQUEST_CROP);
+            return;
+        }
+        final Intent data = new Intent();
+        data.setData(media.get(0).getUri());
+        data.putExtra(EXTRA_MEDIA_COUNT, media.size());
+        if (manifest != null) {
+            data.putExtra(EXTRA_MEDIA_MANIFEST, manifest);
+        } else {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                ClipData clipData = ClipData.newUri(getContentResolver(),
+                        getString(R.string.pnc__label_media), media.get(0).getUri());
+                for (int i = 1, j = media.size(); i < j; i++) {
+                    Uri dstUri = media.get(i).getUri();
+                    clipData.addItem(new ClipData.Item(dstUri));
+                }
+                data.setClipData(clipData);
             }
-            final File file = randomFile(extPickedMediaDir, "pnc__picked_media_", "." + extension);
-            return Uri.fromFile(file);
+            data.putParcelableArrayListExtra(EXTRA_MEDIA_INFO, new ArrayList<>(media));
         }
-        final File cacheDir = getCacheDir();
-        final File pickedMediaDir = new File(cacheDir, "picked-media");
-        if (!pickedMediaDir.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            pickedMediaDir.mkdirs();
+        data.putExtra(EXTRA_EXTRAS, callingIntent.getBundleExtra(EXTRA_EXTRAS));
+        mResultCount = media.size();
+        mFinishErrorClass = null;
+        setResult(RESULT_OK, data);
+        finish();
+        PickedMediaCache.getInstance(this).trimAsync();
+    }
+
+    void onImportFailed(@NonNull final Exception e) {
+        dismissProgressDialog(TAG_COPYING_IMAGE);
+        Log.w(LOGTAG, e);
+        Toast.makeText(this, R.string.pnc__error_cannot_open_file, Toast.LENGTH_SHORT).show();
+        mFinishErrorClass = e.getClass();
+        finish();
+        PickedMediaCache.getInstance(this).trimAsync();
+    }
+
+    void onImportCanceled() {
+        dismissProgressDialog(TAG_COPYING_IMAGE);
+        setResultCanceled();
+        finish();
+        PickedMediaCache.getInstance(this).trimAsync();
+    }
+
+    void onImportProgress(@NonNull final ImportProgress progress) {
+        final Fragment f = getFragmentManager().findFragmentByTag(TAG_COPYING_IMAGE);
+        if (f instanceof ProgressDialogFragment) {
+            ((ProgressDialogFragment) f).setProgress(progress);
+        }
+        final ImportProgress.Listener listener = sImportProgressListener;
+        if (listener != null) {
+            listener.onImportProgress(progress);
         }
-        final File file = randomFile(pickedMediaDir, "pnc__picked_media_", "." + extension);
-        return FileProvider.getUriForFile(this, PNCUtils.getFileAuthority(this), file);
     }
 
     private void dismissProgressDialog(final String tag) {
@@ -388,16 +677,27 @@ public class MediaPickerActivity extends Activity {
         });
     }
 
-    private NetworkStreamDownloader createNetworkStreamDownloader() {
-        final Intent intent = getIntent();
-        try {
-            final Class<?> downloadClass = Class.forName(intent.getStringExtra(EXTRA_STREAM_DOWNLOADER_CLASS));
-            return (NetworkStreamDownloader) downloadClass.getConstructor(Context.class).newInstance(this);
-        } catch (Exception e) {
-            return new URLConnectionNetworkStreamDownloader(this);
+    @NonNull
+    private ComponentRegistry.Factory<? extends NetworkStreamDownloader> getStreamDownloaderFactory() {
+        final String name = getIntent().getStringExtra(EXTRA_STREAM_DOWNLOADER_CLASS);
+        if (name == null) {
+            return ComponentRegistry.getStreamDownloaderFactory(URLConnectionNetworkStreamDownloader.class.getName());
         }
+        return ComponentRegistry.getStreamDownloaderFactory(name);
     }
 
+    @Nullable
+    private Class<? extends Activity> getCropActivityClass() {
+        final String name = getIntent().getStringExtra(EXTRA_CROP_ACTIVITY_CLASS);
+        if (name == null) return null;
+        return ComponentRegistry.getCropActivityClass(name);
+    }
+
+    /**
+     * @return Uri of each picked item. If caller allowed {@link IntentBuilder#allowMediaManifest(boolean)}
+     * and results are in a manifest, only the first one, use {@link MediaManifest#open(Context, Intent)}
+     * to read all of them
+     */
     public static Uri[] getMediaUris(Intent fromIntent) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
             ClipData clipData = fromIntent.getClipData();
@@ -417,14 +717,17 @@ public class MediaPickerActivity extends Activity {
         return new Uri[]{data};
     }
 
-    @SuppressWarnings("SameParameterValue")
-    private static File randomFile(File directory, String prefix, String suffix) {
-        File file;
-        do {
-            final String uuid = UUID.randomUUID().toString();
-            file = new File(directory, prefix + uuid + suffix);
-        } while (file.exists());
-        return file;
+    /**
+     * @return Info of each picked item in the same order as {@link #getMediaUris(Intent)}, empty
+     * if result has none or results are in a manifest allowed by
+     * {@link IntentBuilder#allowMediaManifest(boolean)}. Use {@link MediaManifest#open(Context, Intent)}
+     * to read both
+     */
+    @NonNull
+    public static List<MediaInfo> getMediaInfo(Intent fromIntent) {
+        final ArrayList<MediaInfo> list = fromIntent.getParcelableArrayListExtra(EXTRA_MEDIA_INFO);
+        if (list == null) return Collections.<MediaInfo>emptyList();
+        return list;
     }
 
     public static class ExtraSourceDialogFragment extends DialogFragment implements OnClickListener {
@@ -453,6 +756,7 @@ public class MediaPickerActivity extends Activity {
             } else {
                 Intent data = new Intent();
                 data.putExtra(EXTRA_EXTRAS, getActivity().getIntent().getBundleExtra(EXTRA_EXTRAS));
+                addImageActivity.mFinishErrorClass = null;
                 addImageActivity.setResult(entry.result, data);
                 addImageActivity.finish();
             }
@@ -572,20 +876,50 @@ public class MediaPickerActivity extends Activity {
         @WorkerThread
         public abstract DownloadResult get(Uri uri) throws IOException;
 
+        /**
+         * Called from another thread when import is canceled, possibly while {@link #get(Uri)}
+         * is still connecting or waiting to retry. Implementations should make it fail soon.
+         * Each download gets a downloader of its own, so a canceled one is never reused.
+         */
+        public void cancel() {
+        }
+
         public static final class DownloadResult {
 
             private final InputStream stream;
             private final String mimeType;
+            private final long contentLength;
 
             public DownloadResult(final InputStream stream, final String mimeType) {
+                this(stream, mimeType, -1);
+            }
+
+            /**
+             * @param contentLength Length of {@code stream} in bytes, or -1 if unknown
+             */
+            public DownloadResult(final InputStream stream, final String mimeType,
+                                  final long contentLength) {
                 this.stream = stream;
                 this.mimeType = mimeType;
+                this.contentLength = contentLength;
             }
 
             public static DownloadResult get(InputStream stream, String mimeType) {
                 return new DownloadResult(stream, mimeType);
             }
 
+            public InputStream getStream() {
+                return stream;
+            }
+
+            public String getMimeType() {
+                return mimeType;
+            }
+
+            public long getContentLength() {
+                return contentLength;
+            }
+
         }
     }
 
@@ -599,6 +933,12 @@ public class MediaPickerActivity extends Activity {
     public @interface PickSource {
     }
 
+    @SuppressWarnings("WeakerAccess")
+    @StringDef({FAILURE_POLICY_ABORT, FAILURE_POLICY_SKIP})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface FailurePolicy {
+    }
+
     @SuppressWarnings("unused,WeakerAccess,UnusedReturnValue")
     public static final class IntentBuilder {
         private final Intent intent;
@@ -685,6 +1025,15 @@ public class MediaPickerActivity extends Activity {
             return this;
         }
 
+        /**
+         * Don't open crop activity, just shrink images to fit {@link #maximumSize(int, int)}.
+         * Images picked with {@link #allowMultiple(boolean)} are always handled this way.
+         */
+        public IntentBuilder resizeOnly(boolean resizeOnly) {
+            intent.putExtra(EXTRA_RESIZE_ONLY, resizeOnly);
+            return this;
+        }
+
         public IntentBuilder addEntry(final String name, final String value, final int result) {
             extraEntries.add(new ExtraEntry(name, value, result));
             return this;
@@ -710,220 +1059,71 @@ public class MediaPickerActivity extends Activity {
             return this;
         }
 
-        public IntentBuilder cropImageActivityClass(Class<? extends Activity> cls) {
-            intent.putExtra(EXTRA_CROP_ACTIVITY_CLASS, cls.getName());
+        /**
+         * @param parallelism Maximum number of items copied at the same time, values less than 1
+         *                    are treated as 1
+         */
+        public IntentBuilder parallelism(int parallelism) {
+            intent.putExtra(EXTRA_PARALLELISM, parallelism);
             return this;
         }
 
-        public IntentBuilder streamDownloaderClass(Class<? extends NetworkStreamDownloader> cls) {
-            intent.putExtra(EXTRA_STREAM_DOWNLOADER_CLASS, cls.getName());
+        public IntentBuilder failurePolicy(@FailurePolicy String policy) {
+            intent.putExtra(EXTRA_FAILURE_POLICY, policy);
             return this;
         }
 
-        public Intent build() {
-            intent.putParcelableArrayListExtra(EXTRA_EXTRA_ENTRIES, extraEntries);
-            return intent;
-        }
-    }
-
-    private static class CopyMediaTask extends AsyncTask<Object, Object, Pair<CopyResult[], Exception>> {
-        private static final String TAG_COPYING_IMAGE = "copying_media";
-        private final WeakReference<MediaPickerActivity> mActivityRef;
-        private final Uri[] mSourceUris;
-        private final boolean mNeedsCrop;
-        private final boolean mDeleteSource;
-
-        CopyMediaTask(final MediaPickerActivity activity, final Uri[] sourceUris,
-                      final boolean needsCrop, final boolean deleteSource) {
-            mActivityRef = new WeakReference<>(activity);
-            mSourceUris = sourceUris;
-            mNeedsCrop = needsCrop;
-            mDeleteSource = deleteSource;
-        }
-
-        @Override
-        protected Pair<CopyResult[], Exception> doInBackground(final Object... params) {
-            final Context context = mActivityRef.get();
-            if (context == null) {
-                return Pair.<CopyResult[], Exception>create(null, new InterruptedException());
-            }
-            final ContentResolver cr = context.getContentResolver();
-            CopyResult[] copyResults = new CopyResult[mSourceUris.length];
-            for (int i = 0, j = mSourceUris.length; i < j; i++) {
-                Uri src = mSourceUris[i];
-                try {
-                    copyResults[i] = copyMedia(cr, src);
-                } catch (IOException e) {
-                    return Pair.<CopyResult[], Exception>create(null, e);
-                } catch (SecurityException e) {
-                    return Pair.<CopyResult[], Exception>create(null, e);
-                } catch (InterruptedException e) {
-                    return Pair.<CopyResult[], Exception>create(null, e);
-                }
-            }
-            return Pair.create(copyResults, null);
+        /**
+         * Reuse cached file when identical content is picked again, results may then share the
+         * same Uri
+         */
+        public IntentBuilder deduplicate(boolean deduplicate) {
+            intent.putExtra(EXTRA_DEDUPLICATE, deduplicate);
+            return this;
         }
 
-        private CopyResult copyMedia(@NonNull final ContentResolver cr, @NonNull final Uri src)
-                throws IOException, InterruptedException {
-            final MediaPickerActivity activity = mActivityRef.get();
-            if (activity == null) {
-                throw new InterruptedException();
-            }
-            InputStream is = null;
-            OutputStream os = null;
-            try {
-                final String mimeType;
-                final String scheme = src.getScheme();
-                if (SCHEME_HTTP.equals(scheme) || SCHEME_HTTPS.equals(scheme)) {
-                    final NetworkStreamDownloader downloader = activity.createNetworkStreamDownloader();
-                    final NetworkStreamDownloader.DownloadResult result = downloader.get(src);
-                    is = result.stream;
-                    mimeType = result.mimeType;
-                } else if (SCHEME_DATA.equals(scheme)) {
-                    final DataUri dataUri = DataUri.parse(src.toString(), Charset.defaultCharset());
-                    is = new ByteArrayInputStream(dataUri.getData());
-                    mimeType = dataUri.getMime();
-                } else {
-                    is = cr.openInputStream(src);
-                    mimeType = getMediaMimeType(src);
-                }
-                if (is == null) throw new IOException("InputStream is null");
-                final String extension = mimeType != null ? MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType) : null;
-                final Uri targetUri = activity.createTempMediaUri(extension);
-                os = activity.getContentResolver().openOutputStream(targetUri);
-                if (os == null) throw new IOException("OutputStream is null");
-                PNCUtils.copyStream(is, os);
-                if (mDeleteSource) {
-                    try {
-                        PNCUtils.deleteMedia(activity, src);
-                    } catch (SecurityException e) {
-                        Log.w(LOGTAG, "WRITE_EXTERNAL_STORAGE permission is needed for deleting media", e);
-                    }
-                }
-                return new CopyResult(targetUri, mimeType, extension);
-            } finally {
-                PNCUtils.closeSilently(os);
-                PNCUtils.closeSilently(is);
-            }
+        /**
+         * Put results of large selections in a {@link MediaManifest} instead of the Intent, so it
+         * stays under Binder transaction limit. Results must then be read with
+         * {@link MediaManifest#open(Context, Intent)}, as {@link #getMediaUris(Intent)} and
+         * {@link #getMediaInfo(Intent)} only see the first one.
+         */
+        public IntentBuilder allowMediaManifest(boolean allow) {
+            intent.putExtra(EXTRA_ALLOW_MEDIA_MANIFEST, allow);
+            return this;
         }
 
-        @Override
-        protected void onPreExecute() {
-            final MediaPickerActivity mActivity = mActivityRef.get();
-            if (mActivity == null) {
-                return;
-            }
-            final ProgressDialogFragment f = ProgressDialogFragment.show(mActivity, TAG_COPYING_IMAGE);
-            f.setCancelable(false);
+        public IntentBuilder cropImageActivityClass(Class<? extends Activity> cls) {
+            ComponentRegistry.registerCropActivity(cls);
+            intent.putExtra(EXTRA_CROP_ACTIVITY_CLASS, cls.getName());
+            return this;
         }
 
-        @Override
-        protected void onPostExecute(final Pair<CopyResult[], Exception> result) {
-            final MediaPickerActivity mActivity = mActivityRef.get();
-            if (mActivity == null) {
-                return;
-            }
-            mActivity.dismissProgressDialog(TAG_COPYING_IMAGE);
-            if (result.first != null) {
-                CopyResult[] copyResults = result.first;
-                final Intent callingIntent = mActivity.getIntent();
-                final boolean supportsCrop = copyResults.length == 1;
-                final boolean hasCropParameters = callingIntent.hasExtra(EXTRA_ASPECT_X) && callingIntent.hasExtra(EXTRA_ASPECT_Y)
-                        || callingIntent.hasExtra(EXTRA_MAX_WIDTH) && callingIntent.hasExtra(EXTRA_MAX_HEIGHT);
-                if (supportsCrop && mNeedsCrop && hasCropParameters) {
-                    final Uri tempImageUri;
-                    try {
-                        tempImageUri = mActivity.createTempMediaUri(copyResults[0].extension);
-                    } catch (IOException e) {
-                        Toast.makeText(mActivity, R.string.pnc__error_cannot_open_file, Toast.LENGTH_SHORT).show();
-                        return;
-                    }
-                    CropImage.ActivityBuilder crop = CropImage.activity(copyResults[0].uri);
-                    crop.setAutoZoomEnabled(true);
-                    crop.setMultiTouchEnabled(true);
-                    crop.setOutputUri(tempImageUri);
-                    final int aspectX = callingIntent.getIntExtra(EXTRA_ASPECT_X, -1);
-                    final int aspectY = callingIntent.getIntExtra(EXTRA_ASPECT_Y, -1);
-                    if (aspectX > 0 && aspectY > 0) {
-                        crop.setAspectRatio(aspectX, aspectY);
-                    }
-                    final int maxWidth = callingIntent.getIntExtra(EXTRA_MAX_WIDTH, -1);
-                    final int maxHeight = callingIntent.getIntExtra(EXTRA_MAX_HEIGHT, -1);
-                    if (maxWidth > 0 && maxHeight > 0) {
-                        crop.setRequestedSize(maxWidth, maxHeight, RequestSizeOptions.RESIZE_FIT);
-                    }
-                    final String outputFormat = callingIntent.getStringExtra(EXTRA_OUTPUT_FORMAT);
-                    if (outputFormat != null) {
-                        crop.setOutputCompressFormat(Bitmap.CompressFormat.valueOf(outputFormat));
-                    }
-                    final int outputQuality = callingIntent.getIntExtra(EXTRA_OUTPUT_QUALITY, -1);
-                    if (outputQuality >= 0) {
-                        crop.setOutputCompressQuality(outputQuality);
-                    }
-                    Class<?> activityClass;
-                    try {
-                        activityClass = Class.forName(callingIntent.getStringExtra(EXTRA_CROP_ACTIVITY_CLASS));
-                    } catch (ClassNotFoundException e) {
-                        activityClass = null;
-                    }
-                    mActivity.startActivityForResult(crop.getIntent(mActivity, activityClass), REQUEST_CROP);
-                    return;
-                }
-                final Intent data = new Intent();
-                data.setData(copyResults[0].uri);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
-                    ClipData clipData = ClipData.newUri(mActivity.getContentResolver(),
-                            mActivity.getString(R.string.pnc__label_media), copyResults[0].uri);
-                    for (int i = 1, j = copyResults.length; i < j; i++) {
-                        Uri dstUri = copyResults[i].uri;
-                        clipData.addItem(new ClipData.Item(dstUri));
-                    }
-                    data.setClipData(clipData);
-                }
-                data.putExtra(EXTRA_EXTRAS, mActivity.getIntent().getBundleExtra(EXTRA_EXTRAS));
-                mActivity.setResult(RESULT_OK, data);
-            } else if (result.second != null) {
-                Log.w(LOGTAG, result.second);
-                Toast.makeText(mActivity, R.string.pnc__error_cannot_open_file, Toast.LENGTH_SHORT).show();
-            }
-            mActivity.finish();
+        /**
+         * @throws IllegalArgumentException If {@code cls} has no public constructor taking
+         *                                  {@link Context}
+         */
+        public IntentBuilder streamDownloaderClass(Class<? extends NetworkStreamDownloader> cls) {
+            ComponentRegistry.registerStreamDownloader(cls);
+            intent.putExtra(EXTRA_STREAM_DOWNLOADER_CLASS, cls.getName());
+            return this;
         }
 
-        private String getMediaMimeType(Uri src) throws InterruptedException {
-            final MediaPickerActivity mActivity = mActivityRef.get();
-            if (mActivity == null) {
-                throw new InterruptedException();
-            }
-            InputStream is = null;
-            try {
-                final ContentResolver cr = mActivity.getContentResolver();
-                String uriType = cr.getType(src);
-                if (uriType != null) {
-                    return uriType;
-                }
-                is = cr.openInputStream(src);
-                final BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(is, null, opts);
-                return opts.outMimeType;
-            } catch (IOException e) {
-                return null;
-            } finally {
-                PNCUtils.closeSilently(is);
-            }
+        /**
+         * Uses downloader registered with
+         * {@link ComponentRegistry#registerStreamDownloader(String, ComponentRegistry.Factory)}
+         *
+         * @throws IllegalArgumentException If nothing is registered under {@code name}
+         */
+        public IntentBuilder streamDownloader(String name) {
+            ComponentRegistry.getStreamDownloaderFactory(name);
+            intent.putExtra(EXTRA_STREAM_DOWNLOADER_CLASS, name);
+            return this;
         }
-    }
 
-    private static class CopyResult {
-        Uri uri;
-        String mimeType;
-        String extension;
-
-        CopyResult(Uri uri, String mimeType, String extension) {
-            this.uri = uri;
-            this.mimeType = mimeType;
-            this.extension = extension;
+        public Intent build() {
+            intent.putParcelableArrayListExtra(EXTRA_EXTRA_ENTRIES, extraEntries);
+            return intent;
         }
     }
 
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.StringDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Receives timing of each stage of picking and importing media, set it with
+ * {@link MediaPickerActivity#setMetrics(MediaPickerMetrics)}. {@link MetricsAggregator} keeps
+ * them in memory for exporting later.
+ */
+public interface MediaPickerMetrics {
+
+    /**
+     * From launching picker or camera until it returns, {@link Event#getItemCount()} is number
+     * of items picked
+     */
+    String STAGE_PICK = "pick";
+    /**
+     * Copying one item, with its size and source scheme
+     */
+    String STAGE_COPY = "copy";
+    /**
+     * Detecting MIME type of one item, from provider or content
+     */
+    String STAGE_SNIFF = "sniff";
+    /**
+     * Whole import of all items
+     */
+    String STAGE_IMPORT = "import";
+    /**
+     * From launching crop activity until it returns
+     */
+    String STAGE_CROP = "crop";
+    /**
+     * From picker activity created until it finishes with result
+     */
+    String STAGE_FINISH = "finish";
+
+    /**
+     * Called on the thread stage ended on, including import worker threads, so implementations
+     * should be thread safe and cheap
+     */
+    @AnyThread
+    void onEvent(@NonNull Event event);
+
+    @StringDef({STAGE_PICK, STAGE_COPY, STAGE_SNIFF, STAGE_IMPORT, STAGE_CROP, STAGE_FINISH})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Stage {
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    final class Event {
+        private final String stage;
+        private final long durationNanos;
+        private final long bytes;
+        private final String scheme;
+        private final int itemCount;
+        private final String errorClass;
+        private final boolean cacheHit;
+
+        Event(@Stage String stage, long durationNanos, long bytes, @Nullable String scheme,
+              int itemCount, @Nullable String errorClass, boolean cacheHit) {
+            this.stage = stage;
+            this.durationNanos = durationNanos;
+            this.bytes = bytes;
+            this.scheme = scheme;
+            this.itemCount = itemCount;
+            this.errorClass = errorClass;
+            this.cacheHit = cacheHit;
+        }
+
+        @NonNull
+        @Stage
+        public String getStage() {
+            return stage;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * @return Bytes copied, or -1 if unknown or not applicable
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return Scheme of source for {@link #STAGE_COPY} and {@link #STAGE_SNIFF}, e.g.
+         * {@code content}, {@code http} or {@code data}, null for other stages
+         */
+        @Nullable
+        public String getScheme() {
+            return scheme;
+        }
+
+        public int getItemCount() {
+            return itemCount;
+        }
+
+        /**
+         * @return Class name of exception stage failed with, or null if succeeded.
+         * {@link java.util.concurrent.CancellationException} if canceled by user
+         */
+        @Nullable
+        public String getErrorClass() {
+            return errorClass;
+        }
+
+        /**
+         * @return True if item was already in {@link PickedMediaCache} and wasn't copied, i.e.
+         * adopted from camera or deduplicated
+         */
+        public boolean isCacheHit() {
+            return cacheHit;
+        }
+
+        @Override
+        public String toString() {
+            return "Event{" +
+                    "stage='" + stage + '\'' +
+                    ", durationNanos=" + durationNanos +
+                    ", bytes=" + bytes +
+                    ", scheme='" + scheme + '\'' +
+                    ", itemCount=" + itemCount +
+                    ", errorClass='" + errorClass + '\'' +
+                    ", cacheHit=" + cacheHit +
+                    '}';
+        }
+    }
+}
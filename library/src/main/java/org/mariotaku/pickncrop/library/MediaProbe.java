@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads dimensions, orientation and duration of media from container headers only, seeking over
+ * everything else. Nothing is decoded, so cost doesn't depend on size of media.
+ * <p>
+ * Supports JPEG (SOF and EXIF in APP1), PNG (IHDR), GIF, BMP, WebP (VP8, VP8L, VP8X and EXIF
+ * chunk) and ISO base media / QuickTime ({@code moov/mvhd} and {@code moov/trak/tkhd}).
+ */
+final class MediaProbe {
+
+    static final int ORIENTATION_UNDEFINED = 0;
+    static final int ORIENTATION_NORMAL = 1;
+    private static final int ORIENTATION_ROTATE_180 = 3;
+    private static final int ORIENTATION_ROTATE_90 = 6;
+    private static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+    // Guards against looping forever over crafted files
+    private static final int MAX_SEGMENTS = 256;
+
+    private final RandomAccessFile mFile;
+    private final long mLength;
+    private final byte[] mBuffer = new byte[16];
+
+    private int mWidth = -1, mHeight = -1;
+    private int mOrientation = ORIENTATION_UNDEFINED;
+    private long mDuration = -1;
+
+    private MediaProbe(@NonNull RandomAccessFile file) throws IOException {
+        mFile = file;
+        mLength = file.length();
+    }
+
+    /**
+     * @param mimeType Type of media, as detected while copying
+     * @return Probed information, or null if format is not supported or headers are broken
+     */
+    @Nullable
+    @WorkerThread
+    static MediaInfo probe(@NonNull File file, @Nullable String mimeType) {
+        if (mimeType == null) return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final MediaProbe probe = new MediaProbe(raf);
+            if (!probe.probe(mimeType)) return null;
+            return new MediaInfo(probe.mWidth, probe.mHeight, probe.mOrientation, probe.mDuration);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            PNCUtils.closeSilently(raf);
+        }
+    }
+
+    private boolean probe(@NonNull String mimeType) throws IOException {
+        switch (mimeType) {
+            case "image/jpeg": {
+                return probeJpeg();
+            }
+            case "image/png": {
+                return probePng();
+            }
+            case "image/gif": {
+                return probeGif();
+            }
+            case "image/bmp": {
+                return probeBmp();
+            }
+            case "image/webp": {
+                return probeWebp();
+            }
+            case "video/mp4":
+            case "video/quicktime":
+            case "video/3gpp":
+            case "video/3gpp2": {
+                return probeIsoMedia();
+            }
+        }
+        return false;
+    }
+
+    private boolean probeJpeg() throws IOException {
+        long offset = 2;
+        for (int i = 0; i < MAX_SEGMENTS && offset + 4 <= mLength; i++) {
+            read(offset, 2);
+            if ((mBuffer[0] & 0xFF) != 0xFF) break;
+            final int marker = mBuffer[1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                offset++;
+                continue;
+            }
+            offset += 2;
+            // Markers without payload
+            if (marker == 0x01 || marker >= 0xD0 && marker <= 0xD7) continue;
+            // Start of scan or end of image, no more headers
+            if (marker == 0xDA || marker == 0xD9) break;
+            final int length = readUInt16(offset, true);
+            if (length < 2) return false;
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                read(offset + 2, 5);
+                mHeight = getUInt16(mBuffer, 1, true);
+                mWidth = getUInt16(mBuffer, 3, true);
+            } else if (marker == 0xE1 && mOrientation == ORIENTATION_UNDEFINED && length >= 8) {
+                read(offset + 2, 6);
+                if (mBuffer[0] == 'E' && mBuffer[1] == 'x' && mBuffer[2] == 'i' && mBuffer[3] == 'f'
+                        && mBuffer[4] == 0 && mBuffer[5] == 0) {
+                    mOrientation = readTiffOrientation(offset + 8, length - 8);
+                }
+            }
+            if (mWidth > 0 && mOrientation != ORIENTATION_UNDEFINED) break;
+            offset += length;
+        }
+        if (mOrientation == ORIENTATION_UNDEFINED) {
+            mOrientation = ORIENTATION_NORMAL;
+        }
+        return mWidth > 0;
+    }
+
+    private boolean probePng() throws IOException {
+        // Signature, then IHDR is always the first chunk
+        if (mLength < 24) return false;
+        read(12, 12);
+        if (mBuffer[0] != 'I' || mBuffer[1] != 'H' || mBuffer[2] != 'D' || mBuffer[3] != 'R') {
+            return false;
+        }
+        mWidth = (int) getUInt32(mBuffer, 4, true);
+        mHeight = (int) getUInt32(mBuffer, 8, true);
+        mOrientation = ORIENTATION_NORMAL;
+        return true;
+    }
+
+    private boolean probeGif() throws IOException {
+        if (mLength < 10) return false;
+        read(6, 4);
+        mWidth = getUInt16(mBuffer, 0, false);
+        mHeight = getUInt16(mBuffer, 2, false);
+        mOrientation = ORIENTATION_NORMAL;
+        return true;
+    }
+
+    private boolean probeBmp() throws IOException {
+        if (mLength < 26) return false;
+        read(14, 12);
+        final long headerSize = getUInt32(mBuffer, 0, false);
+        if (headerSize == 12) {
+            // OS/2 BITMAPCOREHEADER has 16 bit dimensions
+            mWidth = getUInt16(mBuffer, 4, false);
+            mHeight = getUInt16(mBuffer, 6, false);
+        } else {
+            mWidth = (int) getUInt32(mBuffer, 4, false);
+            // Negative height means top-down bitmap
+            mHeight = Math.abs((int) getUInt32(mBuffer, 8, false));
+        }
+        mOrientation = ORIENTATION_NORMAL;
+        return true;
+    }
+
+    private boolean probeWebp() throws IOException {
+        long offset = 12;
+        boolean hasExif = false;
+        for (int i = 0; i < MAX_SEGMENTS && offset + 8 <= mLength; i++) {
+            read(offset, 8);
+            final String fourCC = new String(mBuffer, 0, 4, "ISO-8859-1");
+            final long size = getUInt32(mBuffer, 4, false);
+            final long data = offset + 8;
+            switch (fourCC) {
+                case "VP8X": {
+                    read(data, 10);
+                    hasExif = (mBuffer[0] & 0x08) != 0;
+                    mWidth = getUInt24(mBuffer, 4) + 1;
+                    mHeight = getUInt24(mBuffer, 7) + 1;
+                    break;
+                }
+                case "VP8 ": {
+                    if (mWidth <= 0) {
+                        read(data, 10);
+                        // Frame tag, then start code 9D 01 2A
+                        if ((mBuffer[3] & 0xFF) != 0x9D || mBuffer[4] != 0x01 || mBuffer[5] != 0x2A) {
+                            return false;
+                        }
+                        mWidth = getUInt16(mBuffer, 6, false) & 0x3FFF;
+                        mHeight = getUInt16(mBuffer, 8, false) & 0x3FFF;
+                    }
+                    break;
+                }
+                case "VP8L": {
+                    if (mWidth <= 0) {
+                        read(data, 5);
+                        if ((mBuffer[0] & 0xFF) != 0x2F) return false;
+                        final long bits = getUInt32(mBuffer, 1, false);
+                        mWidth = (int) (bits & 0x3FFF) + 1;
+                        mHeight = (int) ((bits >> 14) & 0x3FFF) + 1;
+                    }
+                    break;
+                }
+                case "EXIF": {
+                    mOrientation = readTiffOrientation(data, size);
+                    break;
+                }
+            }
+            // Image data follows EXIF only in broken files, so stop once there's nothing left
+            if (mWidth > 0 && (!hasExif || mOrientation != ORIENTATION_UNDEFINED)) break;
+            // Chunks are padded to even size
+            offset = data + size + (size & 1);
+        }
+        if (mOrientation == ORIENTATION_UNDEFINED) {
+            mOrientation = ORIENTATION_NORMAL;
+        }
+        return mWidth > 0;
+    }
+
+    private boolean probeIsoMedia() throws IOException {
+        final long[] moov = findBox(0, mLength, "moov");
+        if (moov == null) return false;
+        final long[] mvhd = findBox(moov[0], moov[1], "mvhd");
+        if (mvhd != null) {
+            read(mvhd[0], 1);
+            final long timescale, duration;
+            if (mBuffer[0] == 1) {
+                read(mvhd[0] + 20, 12);
+                timescale = getUInt32(mBuffer, 0, true);
+                duration = getUInt64(mBuffer, 4);
+            } else {
+                read(mvhd[0] + 12, 8);
+                timescale = getUInt32(mBuffer, 0, true);
+                duration = getUInt32(mBuffer, 4, true);
+            }
+            if (timescale > 0 && duration >= 0) {
+                mDuration = duration * 1000 / timescale;
+            }
+        }
+        long offset = moov[0];
+        for (int i = 0; i < MAX_SEGMENTS; i++) {
+            final long[] trak = findBox(offset, moov[1], "trak");
+            if (trak == null) break;
+            offset = trak[1];
+            final long[] tkhd = findBox(trak[0], trak[1], "tkhd");
+            if (tkhd == null) continue;
+            read(tkhd[0], 1);
+            // Matrix starts after times, track ID and duration which are wider in version 1
+            final long matrix = tkhd[0] + (mBuffer[0] == 1 ? 52 : 40);
+            read(matrix, 16);
+            final int a = (int) getUInt32(mBuffer, 0, true), b = (int) getUInt32(mBuffer, 4, true);
+            final int c = (int) getUInt32(mBuffer, 12, true);
+            read(matrix + 36, 8);
+            final int width = (int) (getUInt32(mBuffer, 0, true) >> 16);
+            final int height = (int) (getUInt32(mBuffer, 4, true) >> 16);
+            // Audio tracks have no size
+            if (width <= 0 || height <= 0) continue;
+            mWidth = width;
+            mHeight = height;
+            mOrientation = getMatrixOrientation(a, b, c);
+            break;
+        }
+        return mWidth > 0 || mDuration >= 0;
+    }
+
+    /**
+     * @return Start of content and end of the first box of {@code type} in range, or null
+     */
+    @Nullable
+    private long[] findBox(long start, long end, @NonNull String type) throws IOException {
+        long offset = start;
+        for (int i = 0; i < MAX_SEGMENTS && offset + 8 <= end; i++) {
+            read(offset, 8);
+            long size = getUInt32(mBuffer, 0, true);
+            final String boxType = new String(mBuffer, 4, 4, "ISO-8859-1");
+            long header = 8;
+            if (size == 1) {
+                if (offset + 16 > end) return null;
+                read(offset + 8, 8);
+                size = getUInt64(mBuffer, 0);
+                header = 16;
+            } else if (size == 0) {
+                // Box extends to end of file
+                size = end - offset;
+            }
+            if (size < header || offset + size > end) return null;
+            if (type.equals(boxType)) return new long[]{offset + header, offset + size};
+            offset += size;
+        }
+        return null;
+    }
+
+    /**
+     * Reads orientation tag of IFD0 in a TIFF structure, as found in EXIF
+     */
+    private int readTiffOrientation(long start, long length) throws IOException {
+        if (length < 8) return ORIENTATION_UNDEFINED;
+        read(start, 8);
+        final boolean bigEndian;
+        if (mBuffer[0] == 'M' && mBuffer[1] == 'M') {
+            bigEndian = true;
+        } else if (mBuffer[0] == 'I' && mBuffer[1] == 'I') {
+            bigEndian = false;
+        } else {
+            return ORIENTATION_UNDEFINED;
+        }
+        final long ifd = getUInt32(mBuffer, 4, bigEndian);
+        if (ifd + 2 > length) return ORIENTATION_UNDEFINED;
+        final int count = readUInt16(start + ifd, bigEndian);
+        for (int i = 0; i < count && ifd + 2 + (i + 1) * 12 <= length; i++) {
+            read(start + ifd + 2 + i * 12, 12);
+            if (getUInt16(mBuffer, 0, bigEndian) == EXIF_TAG_ORIENTATION) {
+                // SHORT value is left aligned in the 4 byte value field
+                final int orientation = getUInt16(mBuffer, 8, bigEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : ORIENTATION_UNDEFINED;
+            }
+        }
+        return ORIENTATION_UNDEFINED;
+    }
+
+    /**
+     * Maps rotation of a track matrix to EXIF orientation, matrix values are 16.16 fixed point
+     */
+    private static int getMatrixOrientation(int a, int b, int c) {
+        final int one = 0x10000;
+        if (a == 0 && b == one && c == -one) return ORIENTATION_ROTATE_90;
+        if (a == -one && b == 0) return ORIENTATION_ROTATE_180;
+        if (a == 0 && b == -one && c == one) return ORIENTATION_ROTATE_270;
+        return ORIENTATION_NORMAL;
+    }
+
+    private void read(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > mLength) throw new EOFException();
+        mFile.seek(offset);
+        mFile.readFully(mBuffer, 0, length);
+    }
+
+    private int readUInt16(long offset, boolean bigEndian) throws IOException {
+        read(offset, 2);
+        return getUInt16(mBuffer, 0, bigEndian);
+    }
+
+    private static int getUInt16(@NonNull byte[] b, int off, boolean bigEndian) {
+        final int b0 = b[off] & 0xFF, b1 = b[off + 1] & 0xFF;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static int getUInt24(@NonNull byte[] b, int off) {
+        return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16;
+    }
+
+    private static long getUInt32(@NonNull byte[] b, int off, boolean bigEndian) {
+        final long b0 = b[off] & 0xFF, b1 = b[off + 1] & 0xFF, b2 = b[off + 2] & 0xFF, b3 = b[off + 3] & 0xFF;
+        return bigEndian ? (b0 << 24) | (b1 << 16) | (b2 << 8) | b3
+                : (b3 << 24) | (b2 << 16) | (b1 << 8) | b0;
+    }
+
+    private static long getUInt64(@NonNull byte[] b, int off) {
+        return getUInt32(b, off, true) << 32 | getUInt32(b, off + 4, true);
+    }
+}
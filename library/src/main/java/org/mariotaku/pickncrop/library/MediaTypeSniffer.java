@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Detects media type from the first bytes of content, so type of a source can be known from the
+ * same stream that's being copied.
+ */
+final class MediaTypeSniffer {
+
+    /**
+     * Bytes needed by {@link #sniff(byte[], int)}, enough for the EBML doc type of Matroska
+     */
+    static final int PREFIX_LENGTH = 64;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] GIF87A = {'G', 'I', 'F', '8', '7', 'a'};
+    private static final byte[] GIF89A = {'G', 'I', 'F', '8', '9', 'a'};
+    private static final byte[] RIFF = {'R', 'I', 'F', 'F'};
+    private static final byte[] WEBP = {'W', 'E', 'B', 'P'};
+    private static final byte[] BMP = {'B', 'M'};
+    private static final byte[] EBML = {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3};
+    private static final byte[] EBML_DOC_TYPE = {0x42, (byte) 0x82};
+    private static final byte[] FTYP = {'f', 't', 'y', 'p'};
+
+    private MediaTypeSniffer() {
+    }
+
+    /**
+     * @return MIME type of content starting with {@code prefix}, or null if not recognized
+     */
+    @Nullable
+    static String sniff(@NonNull byte[] prefix, int length) {
+        if (startsWith(prefix, length, 0, JPEG)) return "image/jpeg";
+        if (startsWith(prefix, length, 0, PNG)) return "image/png";
+        if (startsWith(prefix, length, 0, GIF87A) || startsWith(prefix, length, 0, GIF89A)) {
+            return "image/gif";
+        }
+        if (startsWith(prefix, length, 0, RIFF) && startsWith(prefix, length, 8, WEBP)) {
+            return "image/webp";
+        }
+        if (startsWith(prefix, length, 0, EBML)) return sniffMatroska(prefix, length);
+        if (startsWith(prefix, length, 4, FTYP)) return sniffIsoMedia(prefix, length);
+        if (isQuickTimeAtom(prefix, length)) return "video/quicktime";
+        // Two bytes match too much on their own, so size of DIB header is checked as well
+        if (startsWith(prefix, length, 0, BMP) && length >= 26 && isDibHeaderSize(prefix)) {
+            return "image/bmp";
+        }
+        return null;
+    }
+
+    /**
+     * Reads up to {@code buffer.length} bytes, fewer only if stream ends
+     *
+     * @return Bytes read
+     */
+    static int readPrefix(@NonNull InputStream is, @NonNull byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            final int count = is.read(buffer, length, buffer.length - length);
+            if (count == -1) break;
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * ISO base media file, type is told by major brand of {@code ftyp} box
+     */
+    @NonNull
+    private static String sniffIsoMedia(@NonNull byte[] prefix, int length) {
+        if (length < 12) return "video/mp4";
+        final String brand = new String(prefix, 8, 4, ISO_8859_1);
+        switch (brand) {
+            case "avif":
+            case "avis": {
+                return "image/avif";
+            }
+            case "heic":
+            case "heix":
+            case "heim":
+            case "heis": {
+                return "image/heic";
+            }
+            case "mif1":
+            case "msf1":
+            case "hevc":
+            case "hevx": {
+                return "image/heif";
+            }
+            case "qt  ": {
+                return "video/quicktime";
+            }
+            case "M4A ": {
+                return "audio/mp4";
+            }
+        }
+        if (brand.startsWith("3gp")) return "video/3gpp";
+        if (brand.startsWith("3g2")) return "video/3gpp2";
+        return "video/mp4";
+    }
+
+    /**
+     * Old QuickTime files have no {@code ftyp}, they start with one of these atoms instead
+     */
+    private static boolean isQuickTimeAtom(@NonNull byte[] prefix, int length) {
+        if (length < 8) return false;
+        final long size = (prefix[0] & 0xFFL) << 24 | (prefix[1] & 0xFF) << 16
+                | (prefix[2] & 0xFF) << 8 | (prefix[3] & 0xFF);
+        // 0 extends to end of file, 1 has 64 bit size after type
+        if (size > 1 && size < 8) return false;
+        // Text with one of these words at offset 4 has printable characters as size too, which
+        // real atoms would have only if they're over 512MB
+        if (isPrintable(prefix[0]) && isPrintable(prefix[1]) && isPrintable(prefix[2])
+                && isPrintable(prefix[3])) {
+            return false;
+        }
+        final String type = new String(prefix, 4, 4, ISO_8859_1);
+        return "moov".equals(type) || "mdat".equals(type) || "wide".equals(type)
+                || "free".equals(type) || "skip".equals(type) || "pnot".equals(type);
+    }
+
+    /**
+     * Size of BITMAPINFOHEADER or one of its known variants, little endian at offset 14
+     */
+    private static boolean isDibHeaderSize(@NonNull byte[] prefix) {
+        if (prefix[15] != 0 || prefix[16] != 0 || prefix[17] != 0) return false;
+        switch (prefix[14] & 0xFF) {
+            case 12:
+            case 16:
+            case 40:
+            case 52:
+            case 56:
+            case 64:
+            case 108:
+            case 124: {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPrintable(byte b) {
+        return b >= 0x20 && b < 0x7F;
+    }
+
+    @NonNull
+    private static String sniffMatroska(@NonNull byte[] prefix, int length) {
+        final int index = indexOf(prefix, length, EBML_DOC_TYPE);
+        // Doc type is followed by its size as one byte EBML vint, then the string
+        if (index >= 0 && index + 3 < length) {
+            final int size = prefix[index + 2] & 0x7F;
+            final int start = index + 3;
+            if (size <= length - start) {
+                final String docType = new String(prefix, start, size, ISO_8859_1);
+                if ("webm".equals(docType)) return "video/webm";
+            }
+        }
+        return "video/x-matroska";
+    }
+
+    private static boolean startsWith(@NonNull byte[] prefix, int length, int offset,
+                                      @NonNull byte[] magic) {
+        if (offset + magic.length > length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (prefix[offset + i] != magic[i]) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(@NonNull byte[] prefix, int length, @NonNull byte[] target) {
+        for (int i = 0, j = length - target.length; i <= j; i++) {
+            if (startsWith(prefix, length, i, target)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Holds {@link MediaPickerMetrics} of this process, events are not even created if it's not set
+ */
+final class Metrics {
+
+    private static final String LOGTAG = "PickNCrop";
+
+    private static volatile MediaPickerMetrics sMetrics;
+
+    private Metrics() {
+    }
+
+    static void set(@Nullable MediaPickerMetrics metrics) {
+        sMetrics = metrics;
+    }
+
+    static void emit(@NonNull @MediaPickerMetrics.Stage String stage, long durationNanos, long bytes,
+                     @Nullable String scheme, int itemCount,
+                     @Nullable Class<? extends Throwable> errorClass, boolean cacheHit) {
+        final MediaPickerMetrics metrics = sMetrics;
+        if (metrics == null) return;
+        try {
+            metrics.onEvent(new MediaPickerMetrics.Event(stage, durationNanos, bytes, scheme,
+                    itemCount, errorClass != null ? errorClass.getName() : null, cacheHit));
+        } catch (RuntimeException e) {
+            // Broken metrics shouldn't break importing
+            Log.w(LOGTAG, "Metrics failed handling " + stage, e);
+        }
+    }
+}
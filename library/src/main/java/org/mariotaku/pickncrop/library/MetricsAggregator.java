@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps counters and latency histograms of each stage in memory, without locking. Read them with
+ * {@link #snapshot()} and export however host app likes, e.g.
+ * <pre>
+ * final MetricsAggregator aggregator = new MetricsAggregator();
+ * MediaPickerActivity.setMetrics(aggregator);
+ * // Later
+ * for (MetricsAggregator.StageSnapshot stage : aggregator.snapshot().values()) {
+ *     report(stage.getStage(), stage.getCount(), stage.getPercentileNanos(0.9));
+ * }
+ * </pre>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class MetricsAggregator implements MediaPickerMetrics {
+
+    /**
+     * Bucket {@code i} counts durations in {@code [2^i, 2^(i+1))} microseconds, so the last one
+     * starts at about 36 minutes
+     */
+    static final int BUCKET_COUNT = 32;
+
+    private final ConcurrentMap<String, StageStats> mStages = new ConcurrentHashMap<>();
+
+    @Override
+    public void onEvent(@NonNull Event event) {
+        StageStats stats = mStages.get(event.getStage());
+        if (stats == null) {
+            final StageStats created = new StageStats();
+            stats = mStages.putIfAbsent(event.getStage(), created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        stats.record(event);
+    }
+
+    /**
+     * @return Stats of each stage seen since created or {@link #reset()}, keyed by stage
+     */
+    @NonNull
+    public Map<String, StageSnapshot> snapshot() {
+        final Map<String, StageSnapshot> result = new HashMap<>();
+        for (Map.Entry<String, StageStats> entry : mStages.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().snapshot(entry.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * Drops all stats, events recorded concurrently may be lost
+     */
+    public void reset() {
+        mStages.clear();
+    }
+
+    static int bucketOf(long durationNanos) {
+        final long micros = durationNanos / 1000;
+        if (micros <= 0) return 0;
+        return Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+    }
+
+    private static void increment(@NonNull ConcurrentMap<String, AtomicLong> counters, @NonNull String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    @NonNull
+    private static Map<String, Long> copyOf(@NonNull ConcurrentMap<String, AtomicLong> counters) {
+        final Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private static final class StageStats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errorCount = new AtomicLong();
+        final AtomicLong cacheHitCount = new AtomicLong();
+        final AtomicLong items = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong totalDurationNanos = new AtomicLong();
+        final AtomicLong maxDurationNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+        final ConcurrentMap<String, AtomicLong> schemes = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        void record(@NonNull Event event) {
+            final long duration = Math.max(0, event.getDurationNanos());
+            count.incrementAndGet();
+            items.addAndGet(event.getItemCount());
+            if (event.getBytes() > 0) {
+                bytes.addAndGet(event.getBytes());
+            }
+            if (event.isCacheHit()) {
+                cacheHitCount.incrementAndGet();
+            }
+            totalDurationNanos.addAndGet(duration);
+            long max;
+            while (duration > (max = maxDurationNanos.get())) {
+                if (maxDurationNanos.compareAndSet(max, duration)) break;
+            }
+            histogram.incrementAndGet(bucketOf(duration));
+            final String scheme = event.getScheme();
+            if (scheme != null) {
+                increment(schemes, scheme);
+            }
+            final String errorClass = event.getErrorClass();
+            if (errorClass != null) {
+                errorCount.incrementAndGet();
+                increment(errors, errorClass);
+            }
+        }
+
+        @NonNull
+        StageSnapshot snapshot(@NonNull String stage) {
+            final long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = histogram.get(i);
+            }
+            return new StageSnapshot(stage, count.get(), errorCount.get(), cacheHitCount.get(),
+                    items.get(), bytes.get(), totalDurationNanos.get(), maxDurationNanos.get(),
+                    buckets, copyOf(schemes), copyOf(errors));
+        }
+    }
+
+    /**
+     * Stats of one stage at the time {@link #snapshot()} was called. Counters are read one by
+     * one, so they may be off by events recorded meanwhile.
+     */
+    public static final class StageSnapshot {
+        private final String stage;
+        private final long count;
+        private final long errorCount;
+        private final long cacheHitCount;
+        private final long itemCount;
+        private final long bytes;
+        private final long totalDurationNanos;
+        private final long maxDurationNanos;
+        private final long[] histogram;
+        private final Map<String, Long> countByScheme;
+        private final Map<String, Long> countByError;
+
+        StageSnapshot(String stage, long count, long errorCount, long cacheHitCount,
+                      long itemCount, long bytes, long totalDurationNanos, long maxDurationNanos,
+                      long[] histogram, Map<String, Long> countByScheme,
+                      Map<String, Long> countByError) {
+            this.stage = stage;
+            this.count = count;
+            this.errorCount = errorCount;
+            this.cacheHitCount = cacheHitCount;
+            this.itemCount = itemCount;
+            this.bytes = bytes;
+            this.totalDurationNanos = totalDurationNanos;
+            this.maxDurationNanos = maxDurationNanos;
+            this.histogram = histogram;
+            this.countByScheme = countByScheme;
+            this.countByError = countByError;
+        }
+
+        @NonNull
+        @Stage
+        public String getStage() {
+            return stage;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public long getCacheHitCount() {
+            return cacheHitCount;
+        }
+
+        /**
+         * @return Sum of {@link Event#getItemCount()}
+         */
+        public long getItemCount() {
+            return itemCount;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getTotalDurationNanos() {
+            return totalDurationNanos;
+        }
+
+        public long getMaxDurationNanos() {
+            return maxDurationNanos;
+        }
+
+        public long getMeanDurationNanos() {
+            return count > 0 ? totalDurationNanos / count : 0;
+        }
+
+        /**
+         * @param percentile Between 0 and 1, e.g. 0.99
+         * @return Upper bound of histogram bucket the percentile falls in, so it's exact within a
+         * factor of 2. 0 if nothing recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            for (long c : histogram) {
+                total += c;
+            }
+            if (total == 0) return 0;
+            final long rank = (long) Math.ceil(Math.max(0, Math.min(1, percentile)) * total);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min((1L << (i + 1)) * 1000, maxDurationNanos);
+                }
+            }
+            return maxDurationNanos;
+        }
+
+        /**
+         * @return Copy of duration histogram, see {@link #BUCKET_COUNT} for bucket bounds
+         */
+        @NonNull
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        @NonNull
+        public Map<String, Long> getCountByScheme() {
+            return countByScheme;
+        }
+
+        /**
+         * @return Failures keyed by {@link Event#getErrorClass()}
+         */
+        @NonNull
+        public Map<String, Long> getCountByError() {
+            return countByError;
+        }
+
+        @Override
+        public String toString() {
+            return "StageSnapshot{" +
+                    "stage='" + stage + '\'' +
+                    ", count=" + count +
+                    ", errorCount=" + errorCount +
+                    ", cacheHitCount=" + cacheHitCount +
+                    ", itemCount=" + itemCount +
+                    ", bytes=" + bytes +
+                    ", meanDurationNanos=" + getMeanDurationNanos() +
+                    ", p50DurationNanos=" + getPercentileNanos(0.5) +
+                    ", p99DurationNanos=" + getPercentileNanos(0.99) +
+                    ", maxDurationNanos=" + maxDurationNanos +
+                    ", countByScheme=" + countByScheme +
+                    ", countByError=" + countByError +
+                    '}';
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -32,15 +33,31 @@ import android.text.style.ImageSpan;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Created by mariotaku on 15/6/18.
  */
 public class PNCUtils {
 
+    private static final int BUFFER_SIZE = 32768;
+    private static final int BUFFER_POOL_SIZE = 4;
+    private static final long TRANSFER_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Queue<byte[]> sBufferPool = new ConcurrentLinkedQueue<>();
+
     @Nullable
     public static String getImageUrl(final Context context) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) return null;
@@ -57,15 +74,77 @@ public class PNCUtils {
         return true;
     }
 
-    public static void copyStream(@NonNull final InputStream is, @NonNull final OutputStream os)
+    /**
+     * Copies all remaining bytes of {@code is} to {@code os}. If both ends are backed by regular
+     * files, bytes are moved with {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     * and never enter user space; otherwise a pooled buffer is used.
+     *
+     * @return Number of bytes copied
+     */
+    public static long copyStream(@NonNull final InputStream is, @NonNull final OutputStream os)
             throws IOException {
-        final int bufferSize = 8192;
-        final byte[] bytes = new byte[bufferSize];
-        int count = is.read(bytes, 0, bufferSize);
-        while (count != -1) {
-            os.write(bytes, 0, count);
-            count = is.read(bytes, 0, bufferSize);
+        return copyStream(is, os, null, null);
+    }
+
+    /**
+     * Same as {@link #copyStream(InputStream, OutputStream)}, but also feeds every byte copied to
+     * {@code digest}, and reports copied bytes to {@code listener} after every chunk. If
+     * {@code digest} is set bytes have to pass through user space, so channel transfer is not
+     * used.
+     */
+    public static long copyStream(@NonNull final InputStream is, @NonNull final OutputStream os,
+                                  @Nullable final MessageDigest digest,
+                                  @Nullable final CopyListener listener) throws IOException {
+        long copied = 0;
+        if (digest == null) {
+            final FileChannel inChannel = getFileChannel(is);
+            final FileChannel outChannel = getFileChannel(os);
+            if (inChannel != null && outChannel != null) {
+                copied = transferChannel(inChannel, outChannel, listener);
+            }
+        }
+        // Copy what's left, e.g. when source grew while transferring
+        final byte[] buffer = obtainBuffer();
+        try {
+            int count = is.read(buffer, 0, buffer.length);
+            while (count != -1) {
+                os.write(buffer, 0, count);
+                if (digest != null) {
+                    digest.update(buffer, 0, count);
+                }
+                if (listener != null) {
+                    listener.onBytesCopied(count);
+                }
+                copied += count;
+                count = is.read(buffer, 0, buffer.length);
+            }
+        } finally {
+            recycleBuffer(buffer);
         }
+        return copied;
+    }
+
+    /**
+     * @return Digest used to identify identical media content
+     */
+    @NonNull
+    public static MessageDigest createContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-1
+            throw new AssertionError(e);
+        }
+    }
+
+    @NonNull
+    public static String toHexString(@NonNull final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0, j = bytes.length; i < j; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
     }
 
     public static boolean deleteMedia(@NonNull Context context, @NonNull Uri uri) {
@@ -109,6 +188,89 @@ public class PNCUtils {
         UtilsAPI19.takePersistableUriPermission(resolver, uri, flags);
     }
 
+    /**
+     * @return File not existing yet in a shard of {@code directory} named by first characters of
+     * a random UUID, so no single directory grows too large
+     */
+    @NonNull
+    static File randomFile(@NonNull File directory, @NonNull String prefix, @NonNull String suffix) {
+        File file;
+        do {
+            final String uuid = UUID.randomUUID().toString();
+            file = new File(new File(directory, uuid.substring(0, 2)), prefix + uuid + suffix);
+        } while (file.exists());
+        return file;
+    }
+
+    @Nullable
+    private static FileChannel getFileChannel(@NonNull final InputStream is) {
+        // Subclasses such as AssetFileDescriptor.AutoCloseInputStream may expose only a part of
+        // the file, so channel of them can't be used directly
+        final Class<?> cls = is.getClass();
+        if (cls != FileInputStream.class && cls != ParcelFileDescriptor.AutoCloseInputStream.class) {
+            return null;
+        }
+        return ((FileInputStream) is).getChannel();
+    }
+
+    @Nullable
+    private static FileChannel getFileChannel(@NonNull final OutputStream os) {
+        final Class<?> cls = os.getClass();
+        if (cls != FileOutputStream.class && cls != ParcelFileDescriptor.AutoCloseOutputStream.class) {
+            return null;
+        }
+        return ((FileOutputStream) os).getChannel();
+    }
+
+    private static long transferChannel(@NonNull final FileChannel in, @NonNull final FileChannel out,
+                                        @Nullable final CopyListener listener) throws IOException {
+        final long start, size;
+        try {
+            start = in.position();
+            size = in.size();
+            out.position();
+        } catch (IOException e) {
+            // Pipes and sockets are not seekable, leave them to buffered copy
+            return 0;
+        }
+        long position = start;
+        while (position < size) {
+            // Transfer in chunks so progress can be reported
+            final long count = in.transferTo(position, Math.min(size - position, TRANSFER_CHUNK_SIZE), out);
+            if (count <= 0) break;
+            position += count;
+            if (listener != null) {
+                listener.onBytesCopied(count);
+            }
+        }
+        in.position(position);
+        return position - start;
+    }
+
+    @NonNull
+    private static byte[] obtainBuffer() {
+        final byte[] buffer = sBufferPool.poll();
+        if (buffer != null) return buffer;
+        return new byte[BUFFER_SIZE];
+    }
+
+    private static void recycleBuffer(@NonNull final byte[] buffer) {
+        if (sBufferPool.size() < BUFFER_POOL_SIZE) {
+            sBufferPool.offer(buffer);
+        }
+    }
+
+    public interface CopyListener {
+        /**
+         * Called on copying thread after each chunk, so implementations should be cheap
+         *
+         * @param count Bytes copied since last call
+         * @throws IOException to abort copying, e.g. {@link java.io.InterruptedIOException} when
+         *                     canceled
+         */
+        void onBytesCopied(long count) throws IOException;
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     private static class UtilsAPI16 {
 
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v4.content.FileProvider;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static android.os.Environment.getExternalStorageState;
+
+/**
+ * Manages files of picked media in cache directory.
+ * <p>
+ * Files are spread into sub directories named by first two hex digits of their random name.
+ * Cache is trimmed in background to {@link #getMaxSize()} and {@link #getMaxAge()}, least
+ * recently modified files go first. Files being written or handed to caller are never evicted
+ * until {@link #release(Uri)} is called, or this process ends.
+ * <p>
+ * Pins are counted, so a deduplicated file shared by several results stays until each of them
+ * is released.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class PickedMediaCache {
+
+    private static final String LOGTAG = "PickNCrop";
+    static final String PICKED_MEDIA_DIR = "picked-media";
+    private static final String FILE_PREFIX = "pnc__picked_media_";
+    private static final String DIGEST_FILE_PREFIX = FILE_PREFIX + "sha1_";
+    // Segmented downloads used to be written here, outside of cache, and were never swept
+    private static final String LEGACY_SEGMENTS_DIR = "pnc-segments";
+
+    public static final long DEFAULT_MAX_SIZE = 100 * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    private static PickedMediaCache sInstance;
+    private static ExecutorService sTrimExecutor;
+
+    private final Context mContext;
+    // Guarded by itself, so a file can't be pinned between checking and deleting it
+    private final Map<String, Integer> mPinCounts = new HashMap<>();
+    private final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+    private volatile long mMaxSize = DEFAULT_MAX_SIZE;
+    private volatile long mMaxAge = DEFAULT_MAX_AGE;
+
+    private PickedMediaCache(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized PickedMediaCache getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new PickedMediaCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @param maxSize Total size in bytes cache is trimmed to
+     */
+    public void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public long getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * @param maxAge Files not modified for longer than this (in milliseconds) will be deleted
+     */
+    public void setMaxAge(long maxAge) {
+        mMaxAge = maxAge;
+    }
+
+    @NonNull
+    public File getDirectory() throws IOException {
+        final File pickedMediaDir;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            if (!getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+                throw new IOException("SD card not mounted");
+            }
+            pickedMediaDir = new File(mContext.getExternalCacheDir(), PICKED_MEDIA_DIR);
+        } else {
+            pickedMediaDir = new File(mContext.getCacheDir(), PICKED_MEDIA_DIR);
+        }
+        return pickedMediaDir;
+    }
+
+    /**
+     * Creates a new file name in cache, returned file is pinned until {@link #release(Uri)}
+     */
+    @NonNull
+    public File createFile(@Nullable String extension) throws IOException {
+        if (extension == null) {
+            extension = "tmp";
+        }
+        final File file = PNCUtils.randomFile(getDirectory(), FILE_PREFIX, "." + extension);
+        final File shard = file.getParentFile();
+        if (!shard.exists() && !shard.mkdirs() && !shard.isDirectory()) {
+            throw new IOException("Unable to create " + shard);
+        }
+        pin(file);
+        return file;
+    }
+
+    /**
+     * Moves {@code file} to a name derived from its content, or drops it if a file with identical
+     * content is in cache already. This way identical media picked again is stored only once,
+     * even across processes.
+     *
+     * @param digest Hex encoded digest of content of {@code file}
+     * @return Pinned file with same content as {@code file}, which may be an existing one
+     */
+    @NonNull
+    File deduplicate(@NonNull File file, @NonNull String digest, @Nullable String extension)
+            throws IOException {
+        if (extension == null) {
+            extension = "tmp";
+        }
+        final File shard = new File(getDirectory(), digest.substring(0, 2));
+        final File target = new File(shard, DIGEST_FILE_PREFIX + digest + "." + extension);
+        if (target.equals(file)) return file;
+        pin(target);
+        if (target.isFile() && target.length() == file.length()) {
+            // Keep it from being evicted as least recently used
+            //noinspection ResultOfMethodCallIgnored
+            target.setLastModified(System.currentTimeMillis());
+            unpin(file);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return target;
+        }
+        if ((!shard.exists() && !shard.mkdirs() && !shard.isDirectory()) || !file.renameTo(target)) {
+            unpin(target);
+            return file;
+        }
+        unpin(file);
+        return target;
+    }
+
+    @NonNull
+    public Uri getUri(@NonNull File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return Uri.fromFile(file);
+        }
+        return FileProvider.getUriForFile(mContext, PNCUtils.getFileAuthority(mContext), file);
+    }
+
+    /**
+     * @return File in cache {@code uri} points to, or null if {@code uri} is not created by
+     * this cache
+     */
+    @Nullable
+    public File getFile(@NonNull Uri uri) {
+        final File file = resolveFile(uri);
+        if (file == null) return null;
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Tells cache that the result is consumed, file {@code uri} points to is deleted once no
+     * other result shares it. Deduplicated files are left for trimming instead, as results of
+     * earlier processes may still point to them.
+     *
+     * @return True if file is deleted
+     */
+    public boolean release(@NonNull Uri uri) {
+        final File file = resolveFile(uri);
+        if (file == null) return false;
+        synchronized (mPinCounts) {
+            if (!unpin(file) || file.getName().startsWith(DIGEST_FILE_PREFIX)) return false;
+            return file.delete();
+        }
+    }
+
+    @Nullable
+    private File resolveFile(@NonNull Uri uri) {
+        final File file;
+        final String scheme = uri.getScheme();
+        if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            if (!PNCUtils.getFileAuthority(mContext).equals(uri.getAuthority())) return null;
+            // FileProvider paths look like /picked-media/<shard>/<file name>
+            final List<String> segments = uri.getPathSegments();
+            if (segments.size() < 2 || !PICKED_MEDIA_DIR.equals(segments.get(0))) return null;
+            File path = new File(mContext.getCacheDir(), PICKED_MEDIA_DIR);
+            for (int i = 1, j = segments.size(); i < j; i++) {
+                path = new File(path, segments.get(i));
+            }
+            file = path;
+        } else if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            final String path = uri.getPath();
+            if (path == null) return null;
+            file = new File(path);
+        } else {
+            return null;
+        }
+        if (!isInCache(file)) return null;
+        return file;
+    }
+
+    void pin(@NonNull File file) {
+        final String path = file.getAbsolutePath();
+        synchronized (mPinCounts) {
+            final Integer count = mPinCounts.get(path);
+            mPinCounts.put(path, count != null ? count + 1 : 1);
+        }
+    }
+
+    /**
+     * Pins {@code file} unless it's deleted already, files are only deleted under the same lock
+     *
+     * @return True if pinned
+     */
+    boolean pinIfExists(@NonNull File file) {
+        synchronized (mPinCounts) {
+            if (!file.isFile()) return false;
+            pin(file);
+            return true;
+        }
+    }
+
+    /**
+     * Removes one pin of {@code file}
+     *
+     * @return True if {@code file} is no longer pinned
+     */
+    boolean unpin(@NonNull File file) {
+        final String path = file.getAbsolutePath();
+        synchronized (mPinCounts) {
+            final Integer count = mPinCounts.get(path);
+            if (count != null && count > 1) {
+                mPinCounts.put(path, count - 1);
+                return false;
+            }
+            mPinCounts.remove(path);
+            return true;
+        }
+    }
+
+    private boolean isPinned(@NonNull File file) {
+        synchronized (mPinCounts) {
+            return mPinCounts.containsKey(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Schedules {@link #trim()} on a background thread, does nothing if one is already pending
+     */
+    public void trimAsync() {
+        if (!mTrimScheduled.compareAndSet(false, true)) return;
+        getTrimExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                mTrimScheduled.set(false);
+                trim();
+            }
+        });
+    }
+
+    /**
+     * Deletes expired files, then least recently modified files until total size fits
+     * {@link #getMaxSize()}
+     */
+    @WorkerThread
+    public void trim() {
+        deleteLegacySegments();
+        final List<File> files = new ArrayList<>();
+        final File internalDir = new File(mContext.getCacheDir(), PICKED_MEDIA_DIR);
+        collectFiles(internalDir, files);
+        final File extCacheDir = mContext.getExternalCacheDir();
+        if (extCacheDir != null) {
+            collectFiles(new File(extCacheDir, PICKED_MEDIA_DIR), files);
+        }
+        final long now = System.currentTimeMillis();
+        final long maxAge = mMaxAge, maxSize = mMaxSize;
+        final long[] lastModified = new long[files.size()];
+        final List<Integer> candidates = new ArrayList<>(files.size());
+        long totalSize = 0;
+        for (int i = 0, j = files.size(); i < j; i++) {
+            final File file = files.get(i);
+            lastModified[i] = file.lastModified();
+            if (isPinned(file)) {
+                totalSize += file.length();
+            } else if (now - lastModified[i] > maxAge) {
+                delete(file);
+            } else {
+                totalSize += file.length();
+                candidates.add(i);
+            }
+        }
+        if (totalSize > maxSize) {
+            Collections.sort(candidates, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    final long l = lastModified[lhs], r = lastModified[rhs];
+                    return l < r ? -1 : (l == r ? 0 : 1);
+                }
+            });
+            for (int i = 0, j = candidates.size(); i < j && totalSize > maxSize; i++) {
+                final File file = files.get(candidates.get(i));
+                final long length = file.length();
+                if (delete(file)) {
+                    totalSize -= length;
+                }
+            }
+        }
+    }
+
+    private void deleteLegacySegments() {
+        final File dir = new File(mContext.getCacheDir(), LEGACY_SEGMENTS_DIR);
+        final File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private boolean delete(@NonNull File file) {
+        final boolean deleted;
+        synchronized (mPinCounts) {
+            // Checked again in case it's pinned while trimming
+            if (mPinCounts.containsKey(file.getAbsolutePath())) return false;
+            deleted = file.delete();
+        }
+        if (!deleted) {
+            Log.w(LOGTAG, "Unable to delete cached media " + file);
+        }
+        return deleted;
+    }
+
+    private boolean isInCache(@NonNull File file) {
+        try {
+            final String path = file.getCanonicalPath();
+            final File extCacheDir = mContext.getExternalCacheDir();
+            if (extCacheDir != null && isInDirectory(path, new File(extCacheDir, PICKED_MEDIA_DIR))) {
+                return true;
+            }
+            return isInDirectory(path, new File(mContext.getCacheDir(), PICKED_MEDIA_DIR));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isInDirectory(@NonNull String path, @NonNull File dir) throws IOException {
+        return path.startsWith(dir.getCanonicalPath() + File.separator);
+    }
+
+    /**
+     * Shard directories are left in place even when empty, there're at most 256 of them and
+     * deleting one could race with {@link #createFile(String)} creating a file in it
+     */
+    private static void collectFiles(@NonNull File root, @NonNull List<File> files) {
+        final File[] children = root.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                // Shards are only one level deep
+                final File[] shardFiles = child.listFiles();
+                if (shardFiles != null) {
+                    Collections.addAll(files, shardFiles);
+                }
+            } else {
+                // Files created before sharding was introduced
+                files.add(child);
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getTrimExecutor() {
+        if (sTrimExecutor == null) {
+            sTrimExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    final Thread thread = new Thread(r, "PickNCrop-CacheTrim");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTrimExecutor;
+    }
+}
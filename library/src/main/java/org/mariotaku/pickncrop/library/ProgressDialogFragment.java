@@ -20,17 +20,62 @@ import android.app.Activity;
 import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.text.format.Formatter;
 
 public class ProgressDialogFragment extends DialogFragment {
 
+    private static final int PROGRESS_MAX = 1000;
+
     @Override
     public Dialog onCreateDialog(final Bundle savedInstanceState) {
         final ProgressDialog dialog = new ProgressDialog(getActivity());
         dialog.setMessage(getString(R.string.pnc__please_wait));
+        // Style can't be changed once shown, so start as an indeterminate bar
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setIndeterminate(true);
+        dialog.setProgressNumberFormat(null);
+        dialog.setProgressPercentFormat(null);
+        // Only back key cancels, a stray touch shouldn't abort a long import
+        dialog.setCanceledOnTouchOutside(false);
         return dialog;
     }
 
+    @Override
+    public void onCancel(final DialogInterface dialog) {
+        super.onCancel(dialog);
+        final Activity activity = getActivity();
+        if (activity instanceof MediaPickerActivity) {
+            ((MediaPickerActivity) activity).cancelImport();
+        }
+    }
+
+    public void setProgress(@NonNull final ImportProgress progress) {
+        final Activity activity = getActivity();
+        final ProgressDialog dialog = (ProgressDialog) getDialog();
+        if (activity == null || dialog == null) return;
+        final String copied = Formatter.formatShortFileSize(activity, progress.getBytesCopied());
+        final String speed = Formatter.formatShortFileSize(activity, progress.getBytesPerSecond());
+        final long total = progress.getTotalBytes();
+        String message;
+        if (total > 0) {
+            dialog.setIndeterminate(false);
+            dialog.setMax(PROGRESS_MAX);
+            dialog.setProgress((int) Math.min(PROGRESS_MAX, progress.getBytesCopied() * PROGRESS_MAX / total));
+            message = getString(R.string.pnc__import_progress_bytes, copied,
+                    Formatter.formatShortFileSize(activity, total), speed);
+        } else {
+            message = getString(R.string.pnc__import_progress_bytes_unknown_total, copied, speed);
+        }
+        if (progress.getItemCount() > 1) {
+            message = getString(R.string.pnc__import_progress_items, progress.getItemsDone(),
+                    progress.getItemCount()) + "\n" + message;
+        }
+        dialog.setMessage(message);
+    }
+
     public static ProgressDialogFragment show(final Activity activity, final String tag) {
         if (activity == null) return null;
         final ProgressDialogFragment f = new ProgressDialogFragment();
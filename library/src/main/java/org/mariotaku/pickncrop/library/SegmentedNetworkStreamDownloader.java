@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads large media with several connections at once, each fetching its own byte range into
+ * a preallocated file in {@link PickedMediaCache}. Returned stream reads that file in order as
+ * soon as bytes are there, and {@link MediaImporter} takes the file over once it's read through
+ * instead of writing it again. Left over files are trimmed with the rest of the cache.
+ * <p>
+ * Used only if server sends {@code Accept-Ranges: bytes} and {@code Content-Length} without
+ * content encoding, along with a strong {@code ETag} or {@code Last-Modified} so ranges are
+ * known to come from the same resource, and media is large enough for at least two segments.
+ * Otherwise it downloads with a single stream like {@link URLConnectionNetworkStreamDownloader}.
+ * <p>
+ * Opt in with {@link MediaPickerActivity.IntentBuilder#streamDownloaderClass(Class)}.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class SegmentedNetworkStreamDownloader extends URLConnectionNetworkStreamDownloader {
+
+    private static final String LOGTAG = "PickNCrop";
+    private static final int BUFFER_SIZE = 32768;
+
+    public static final int DEFAULT_MAX_SEGMENTS = 4;
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private static ExecutorService sSegmentExecutor;
+
+    private boolean mAcceptRanges;
+    private long mTotalLength = -1;
+    private String mValidator;
+    private String mContentEncoding;
+
+    public SegmentedNetworkStreamDownloader(final Context context) {
+        super(context);
+    }
+
+    /**
+     * @return Maximum number of connections used for one download
+     */
+    protected int getMaxSegments() {
+        return DEFAULT_MAX_SEGMENTS;
+    }
+
+    /**
+     * @return Smallest range worth a connection of its own
+     */
+    protected long getMinSegmentSize() {
+        return DEFAULT_MIN_SEGMENT_SIZE;
+    }
+
+    @Override
+    public DownloadResult get(final Uri uri) throws IOException {
+        final DownloadResult result = super.get(uri);
+        final int segmentCount = getSegmentCount();
+        if (segmentCount < 2) return result;
+        final SegmentedInputStream stream;
+        try {
+            final String mimeType = result.getMimeType();
+            final String extension = mimeType != null ? MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType) : null;
+            stream = new SegmentedInputStream(new URL(uri.toString()), result.getStream(),
+                    mTotalLength, segmentCount, mValidator, extension);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to create segments file, using single connection", e);
+            return result;
+        }
+        stream.start();
+        return new DownloadResult(stream, result.getMimeType(), mTotalLength);
+    }
+
+    @Override
+    protected void onInitialResponse(@NonNull HttpURLConnection connection) throws IOException {
+        super.onInitialResponse(connection);
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) return;
+        final String acceptRanges = connection.getHeaderField("Accept-Ranges");
+        mAcceptRanges = acceptRanges != null && "bytes".equalsIgnoreCase(acceptRanges.trim());
+        mTotalLength = parseLong(connection.getHeaderField("Content-Length"));
+        mValidator = getValidator(connection);
+        mContentEncoding = connection.getContentEncoding();
+    }
+
+    private int getSegmentCount() {
+        if (!mAcceptRanges || mTotalLength <= 0) return 1;
+        // Without If-Range, ranges of different versions could be stitched together unnoticed
+        if (mValidator == null) return 1;
+        // Ranges of encoded body can't be stitched into decoded length
+        if (mContentEncoding != null && !"identity".equalsIgnoreCase(mContentEncoding)) return 1;
+        return (int) Math.min(getMaxSegments(), mTotalLength / Math.max(1, getMinSegmentSize()));
+    }
+
+    /**
+     * Segments are not run on {@link ImportExecutor}, whose threads may be the ones blocked
+     * reading them. Pool is unbounded for the same reason, idle threads exit after a while.
+     */
+    private static synchronized ExecutorService getSegmentExecutor() {
+        if (sSegmentExecutor == null) {
+            sSegmentExecutor = Executors.newCachedThreadPool(
+                    ImportExecutor.newThreadFactory("PickNCrop-Segment"));
+        }
+        return sSegmentExecutor;
+    }
+
+    /**
+     * Reads bytes of the file in order, blocking until the segment covering current position
+     * has downloaded them
+     */
+    class SegmentedInputStream extends InputStream {
+
+        private final URL mUrl;
+        private final InputStream mFirstStream;
+        private final long mLength;
+        private final int mSegmentCount;
+        private final long mSegmentSize;
+        @NonNull
+        private final String mValidator;
+        private final PickedMediaCache mCache;
+        private final File mFile;
+        private final RandomAccessFile mRandomAccessFile;
+        private final FileChannel mChannel;
+        private final List<Future<?>> mTasks = new ArrayList<>();
+        private final Set<HttpURLConnection> mConnections = Collections.newSetFromMap(
+                new ConcurrentHashMap<HttpURLConnection, Boolean>());
+
+        private final Object mLock = new Object();
+        // Bytes downloaded contiguously from start of each segment, guarded by mLock
+        private final long[] mWritten;
+        private IOException mError;
+
+        private long mPosition;
+        private volatile boolean mClosed;
+        private boolean mTaken;
+
+        /**
+         * @param firstStream Body of the initial response, used for first segment
+         */
+        SegmentedInputStream(@NonNull URL url, @NonNull InputStream firstStream, long length,
+                             int segmentCount, @NonNull String validator,
+                             @Nullable String extension) throws IOException {
+            mUrl = url;
+            mFirstStream = firstStream;
+            mLength = length;
+            mSegmentCount = segmentCount;
+            mSegmentSize = length / segmentCount;
+            mValidator = validator;
+            mWritten = new long[segmentCount];
+            mCache = PickedMediaCache.getInstance(getContext());
+            mFile = mCache.createFile(extension);
+            try {
+                mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+                mRandomAccessFile.setLength(length);
+            } catch (IOException e) {
+                mCache.release(mCache.getUri(mFile));
+                throw e;
+            }
+            mChannel = mRandomAccessFile.getChannel();
+        }
+
+        void start() {
+            final ExecutorService executor = getSegmentExecutor();
+            for (int i = 0; i < mSegmentCount; i++) {
+                final int segment = i;
+                mTasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            downloadSegment(segment);
+                        } catch (IOException | RuntimeException e) {
+                            // Reader would wait forever if a worker dies silently
+                            synchronized (mLock) {
+                                if (mError == null) {
+                                    mError = e instanceof IOException ? (IOException) e : new IOException(e);
+                                }
+                                mLock.notifyAll();
+                            }
+                        }
+                    }
+                }));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int count = read(b, 0, 1);
+            return count == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (mPosition >= mLength) {
+                verifyLength();
+                return -1;
+            }
+            final int segment = (int) Math.min(mSegmentCount - 1, mPosition / mSegmentSize);
+            long available;
+            synchronized (mLock) {
+                while (true) {
+                    if (mClosed) throw new IOException("Stream closed");
+                    if (mError != null) throw mError;
+                    available = getSegmentStart(segment) + mWritten[segment] - mPosition;
+                    if (available > 0) break;
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            final int count = mChannel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)),
+                    mPosition);
+            if (count <= 0) throw new IOException("Unable to read downloaded bytes at " + mPosition);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (mPosition >= mLength) return 0;
+            final int segment = (int) Math.min(mSegmentCount - 1, mPosition / mSegmentSize);
+            synchronized (mLock) {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0,
+                        getSegmentStart(segment) + mWritten[segment] - mPosition));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed = true;
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+            for (Future<?> task : mTasks) {
+                task.cancel(true);
+            }
+            // Unblocks workers waiting for network
+            PNCUtils.closeSilently(mFirstStream);
+            for (HttpURLConnection connection : mConnections) {
+                connection.disconnect();
+            }
+            PNCUtils.closeSilently(mRandomAccessFile);
+            if (!mTaken) {
+                mCache.release(mCache.getUri(mFile));
+            }
+        }
+
+        /**
+         * Hands over downloaded file once stream is read to its end, it's then not deleted on
+         * {@link #close()} and stays pinned until caller releases it
+         *
+         * @return Pinned file in {@link PickedMediaCache}
+         * @throws IOException If stream is not read to its end
+         */
+        @NonNull
+        File takeFile() throws IOException {
+            if (mClosed || mPosition < mLength) throw new IOException("Download is not complete");
+            verifyLength();
+            mTaken = true;
+            return mFile;
+        }
+
+        private void verifyLength() throws IOException {
+            long written = 0;
+            synchronized (mLock) {
+                for (long w : mWritten) {
+                    written += w;
+                }
+            }
+            if (written != mLength || mChannel.size() != mLength) {
+                throw new IOException("Downloaded " + written + " bytes of " + mLength);
+            }
+        }
+
+        private long getSegmentStart(int segment) {
+            return segment * mSegmentSize;
+        }
+
+        private long getSegmentEnd(int segment) {
+            return segment == mSegmentCount - 1 ? mLength : (segment + 1) * mSegmentSize;
+        }
+
+        private long getSegmentPosition(int segment) {
+            synchronized (mLock) {
+                return getSegmentStart(segment) + mWritten[segment];
+            }
+        }
+
+        private void downloadSegment(int segment) throws IOException {
+            // First segment is read from initial response, which resumes by itself
+            boolean useFirstStream = segment == 0;
+            int failures = 0;
+            while (true) {
+                HttpURLConnection connection = null;
+                InputStream is = null;
+                final long startPosition = getSegmentPosition(segment);
+                try {
+                    if (useFirstStream) {
+                        useFirstStream = false;
+                        is = mFirstStream;
+                    } else {
+                        connection = openRange(startPosition, getSegmentEnd(segment));
+                        is = connection.getInputStream();
+                    }
+                    transfer(segment, is);
+                    return;
+                } catch (IOException e) {
+                    if (getSegmentPosition(segment) > startPosition) {
+                        failures = 0;
+                    }
+                    if (mClosed || failures >= getMaxRetries() || !isRetryable(e)) throw e;
+                    Log.w(LOGTAG, "Retrying segment " + segment + " of " + mUrl + " after: " + e);
+                    sleepBeforeRetry(failures++);
+                } finally {
+                    PNCUtils.closeSilently(is);
+                    if (connection != null) {
+                        mConnections.remove(connection);
+                        connection.disconnect();
+                    }
+                }
+            }
+        }
+
+        @NonNull
+        private HttpURLConnection openRange(long start, long end) throws IOException {
+            final HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+            mConnections.add(connection);
+            if (mClosed) throw new InterruptedIOException("Download canceled");
+            prepareConnection(connection);
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+            connection.setRequestProperty("If-Range", mValidator);
+            final int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) {
+                throw new ResumeException("Server ignored range request, resource may have changed");
+            } else if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new HttpStatusException(code, connection.getResponseMessage());
+            }
+            final long rangeStart = getContentRangeStart(connection.getHeaderField("Content-Range"));
+            if (rangeStart != start) {
+                throw new ResumeException("Server sent range at " + rangeStart + " instead of " + start);
+            }
+            return connection;
+        }
+
+        private void transfer(int segment, @NonNull InputStream is) throws IOException {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            final long end = getSegmentEnd(segment);
+            long position = getSegmentPosition(segment);
+            while (position < end) {
+                final int count = is.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (mClosed) throw new InterruptedIOException("Download canceled");
+                if (count == -1) {
+                    throw new IOException("Segment " + segment + " ended at " + position
+                            + " before " + end);
+                }
+                final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, count);
+                long writePosition = position;
+                while (bb.hasRemaining()) {
+                    writePosition += mChannel.write(bb, writePosition);
+                }
+                position += count;
+                synchronized (mLock) {
+                    mWritten[segment] += count;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+}
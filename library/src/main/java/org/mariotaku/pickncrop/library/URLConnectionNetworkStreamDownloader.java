@@ -18,22 +18,402 @@ package org.mariotaku.pickncrop.library;
 
 import android.content.Context;
 import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Downloads with connect and read timeouts. Failed connections are retried with exponential
+ * backoff, and a download broken halfway is resumed with a {@code Range} request from where it
+ * stopped, validated by {@code ETag} or {@code Last-Modified} so a changed resource is never
+ * spliced into the old one. Downloads with neither of them are not resumed.
+ * <p>
  * Created by mariotaku on 15/6/18.
  */
+@SuppressWarnings({"unused", "WeakerAccess"})
 public class URLConnectionNetworkStreamDownloader extends MediaPickerActivity.NetworkStreamDownloader {
+
+    private static final String LOGTAG = "PickNCrop";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long RETRY_BACKOFF = 1000;
+    private static final long MAX_RETRY_BACKOFF = 8000;
+
+    private int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int mReadTimeout = DEFAULT_READ_TIMEOUT;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    // Notified when canceled, so retry backoff doesn't wait it out
+    private final Object mCancelLock = new Object();
+    private volatile boolean mCanceled;
+    // Stream still connecting in get(), closed when canceled
+    private volatile InputStream mOpening;
+
     public URLConnectionNetworkStreamDownloader(final Context context) {
         super(context);
     }
 
     @Override
     public DownloadResult get(final Uri uri) throws IOException {
-        final URLConnection urlConnection = new URL(uri.toString()).openConnection();
-        return new DownloadResult(urlConnection.getInputStream(), urlConnection.getContentType());
+        final ResumableInputStream stream = new ResumableInputStream(new URL(uri.toString()));
+        mOpening = stream;
+        try {
+            // Canceled before stream was registered
+            if (mCanceled) throw new InterruptedIOException("Download canceled");
+            stream.open();
+        } finally {
+            mOpening = null;
+        }
+        return new DownloadResult(stream, stream.mContentType, stream.mContentLength);
+    }
+
+    /**
+     * Aborts connection being made by {@link #get(Uri)} and wakes it from waiting to retry.
+     * Retries of streams it returned stop waiting as well.
+     */
+    @Override
+    public void cancel() {
+        synchronized (mCancelLock) {
+            mCanceled = true;
+            mCancelLock.notifyAll();
+        }
+        PNCUtils.closeSilently(mOpening);
+    }
+
+    public final boolean isCanceled() {
+        return mCanceled;
+    }
+
+    public int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    /**
+     * @param connectTimeout Timeout in milliseconds, 0 for no timeout
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        mConnectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * @param readTimeout Timeout in milliseconds for a single read, 0 for no timeout
+     */
+    public void setReadTimeout(int readTimeout) {
+        mReadTimeout = readTimeout;
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * @param maxRetries Times to retry after consecutive failures, 0 disables retry and resume
+     */
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Called before every request, including retries. Subclasses can add headers here.
+     */
+    protected void prepareConnection(@NonNull URLConnection connection) {
+        connection.setConnectTimeout(mConnectTimeout);
+        connection.setReadTimeout(mReadTimeout);
+        // Transparent gzip would make byte offsets refer to encoded content
+        connection.setRequestProperty("Accept-Encoding", "identity");
+    }
+
+    /**
+     * Called before first request of a download after {@link #prepareConnection(URLConnection)},
+     * but not before requests resuming it. Conditional headers belong here.
+     */
+    protected void prepareInitialRequest(@NonNull URLConnection connection) {
+    }
+
+    /**
+     * Called with response of first request before its status code is checked, statuses other
+     * than 200 are then thrown as {@link HttpStatusException}
+     */
+    protected void onInitialResponse(@NonNull HttpURLConnection connection) throws IOException {
+    }
+
+    /**
+     * @return True if request failed by {@code e} is worth trying again
+     */
+    protected boolean isRetryable(@NonNull IOException e) {
+        if (e instanceof HttpStatusException) {
+            final int code = ((HttpStatusException) e).getStatusCode();
+            return code >= 500 || code == 408 || code == 429;
+        }
+        if (e instanceof SocketTimeoutException) return true;
+        // Thread interrupted, import is being canceled
+        return !(e instanceof InterruptedIOException) && !(e instanceof ResumeException);
+    }
+
+    /**
+     * Waits with exponential backoff, returning early if {@link #cancel()} is called
+     *
+     * @throws InterruptedIOException If canceled or interrupted
+     */
+    void sleepBeforeRetry(int attempt) throws InterruptedIOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                Math.min(MAX_RETRY_BACKOFF, RETRY_BACKOFF << attempt));
+        synchronized (mCancelLock) {
+            long remaining;
+            while (!mCanceled && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mCancelLock, remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting to retry");
+                }
+            }
+        }
+        if (mCanceled) throw new InterruptedIOException("Download canceled");
+    }
+
+    /**
+     * Thrown when server responds with an unexpected status code
+     */
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatusCode;
+
+        public HttpStatusException(int statusCode, String message) {
+            super("HTTP " + statusCode + " " + message);
+            mStatusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+
+    /**
+     * Thrown when a broken download can't continue, e.g. resource changed on server
+     */
+    public static class ResumeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ResumeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Stream that reconnects and continues from its current position when reading fails
+     */
+    private class ResumableInputStream extends InputStream {
+
+        private final URL mUrl;
+        // Closed by close() from another thread while read() may be using them
+        private volatile URLConnection mConnection;
+        private volatile InputStream mStream;
+        private long mPosition;
+        // Strong ETag or Last-Modified of first response, used for If-Range
+        private String mValidator;
+        private String mContentType;
+        private long mContentLength = -1;
+        private int mFailures;
+        private volatile boolean mClosed;
+
+        ResumableInputStream(@NonNull URL url) {
+            mUrl = url;
+        }
+
+        void open() throws IOException {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    connect();
+                    // Closed by cancel() while connecting
+                    if (mClosed) throw new InterruptedIOException("Download canceled");
+                    return;
+                } catch (IOException e) {
+                    disconnect();
+                    if (mClosed || attempt >= mMaxRetries || !isRetryable(e)) throw e;
+                    Log.w(LOGTAG, "Retrying " + mUrl + " after: " + e);
+                    sleepBeforeRetry(attempt);
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            final int count = read(b, 0, 1);
+            return count == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            while (true) {
+                if (mClosed) throw new IOException("Stream closed");
+                try {
+                    final int count = mStream.read(b, off, len);
+                    if (count == -1 && mContentLength >= 0 && mPosition < mContentLength) {
+                        throw new IOException("Unexpected end of stream at " + mPosition
+                                + " of " + mContentLength);
+                    }
+                    if (count > 0) {
+                        mPosition += count;
+                        mFailures = 0;
+                    }
+                    return count;
+                } catch (IOException e) {
+                    resume(e);
+                }
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mStream != null ? mStream.available() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            disconnect();
+        }
+
+        private void resume(@NonNull IOException cause) throws IOException {
+            IOException e = cause;
+            while (true) {
+                if (mClosed || mFailures >= mMaxRetries || !isRetryable(e)) throw e;
+                if (mPosition > 0 && mValidator == null) {
+                    // Bytes read so far can't be told apart from a changed resource
+                    final ResumeException resumeError = new ResumeException("No ETag or Last-Modified, can't resume " + mUrl);
+                    resumeError.initCause(e);
+                    throw resumeError;
+                }
+                Log.w(LOGTAG, "Resuming " + mUrl + " from " + mPosition + " after: " + e);
+                disconnect();
+                sleepBeforeRetry(mFailures++);
+                if (mClosed) throw e;
+                try {
+                    connect();
+                    return;
+                } catch (IOException connectError) {
+                    e = connectError;
+                }
+            }
+        }
+
+        private void connect() throws IOException {
+            final URLConnection conn = mUrl.openConnection();
+            mConnection = conn;
+            prepareConnection(conn);
+            final boolean resuming = mPosition > 0;
+            if (resuming) {
+                if (mValidator == null) throw new ResumeException("Can't resume " + mUrl);
+                conn.setRequestProperty("Range", "bytes=" + mPosition + "-");
+                conn.setRequestProperty("If-Range", mValidator);
+            } else {
+                prepareInitialRequest(conn);
+            }
+            if (!(conn instanceof HttpURLConnection)) {
+                if (resuming) throw new ResumeException("Can't resume " + mUrl);
+                mStream = conn.getInputStream();
+                mContentType = conn.getContentType();
+                mContentLength = parseLong(conn.getHeaderField("Content-Length"));
+                return;
+            }
+            final HttpURLConnection http = (HttpURLConnection) conn;
+            final int code = http.getResponseCode();
+            if (!resuming) {
+                onInitialResponse(http);
+            }
+            if (resuming && code == HttpURLConnection.HTTP_PARTIAL) {
+                final long start = getContentRangeStart(http.getHeaderField("Content-Range"));
+                if (start != mPosition) {
+                    throw new ResumeException("Server resumed at " + start + " instead of " + mPosition);
+                }
+                mStream = http.getInputStream();
+                return;
+            } else if (code != HttpURLConnection.HTTP_OK) {
+                throw new HttpStatusException(code, http.getResponseMessage());
+            }
+            final String validator = getValidator(http);
+            if (resuming) {
+                // Server ignored Range, or resource changed so If-Range didn't match. Bytes
+                // already read can be skipped only if it's provably the same resource.
+                if (!mValidator.equals(validator)) {
+                    throw new ResumeException("Resource changed, can't resume " + mUrl);
+                }
+                final InputStream is = http.getInputStream();
+                mStream = is;
+                skipFully(is, mPosition);
+                return;
+            }
+            mValidator = validator;
+            mContentType = http.getContentType();
+            mContentLength = parseLong(http.getHeaderField("Content-Length"));
+            mStream = http.getInputStream();
+        }
+
+        private void disconnect() {
+            PNCUtils.closeSilently(mStream);
+            final URLConnection conn = mConnection;
+            if (conn instanceof HttpURLConnection) {
+                ((HttpURLConnection) conn).disconnect();
+            }
+        }
+
+        private void skipFully(@NonNull InputStream is, long count) throws IOException {
+            while (count > 0) {
+                final long skipped = is.skip(count);
+                if (skipped <= 0) {
+                    if (is.read() == -1) throw new ResumeException("Resource is shorter than before");
+                    count--;
+                } else {
+                    count -= skipped;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Strong ETag or Last-Modified of response, usable for {@code If-Range}
+     */
+    @Nullable
+    static String getValidator(@NonNull HttpURLConnection http) {
+        final String etag = http.getHeaderField("ETag");
+        // Weak validators are not allowed in If-Range
+        if (etag != null && !etag.startsWith("W/")) return etag;
+        return http.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * @return Start offset of {@code Content-Range: bytes start-end/total}, or -1 if malformed
+     */
+    static long getContentRangeStart(@Nullable String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+        final int dash = contentRange.indexOf('-', 6);
+        if (dash < 0) return -1;
+        return parseLong(contentRange.substring(6, dash).trim());
+    }
+
+    static long parseLong(@Nullable String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 }
@@ -28,9 +28,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Locale;
 
 /**
  * A data URI parser
@@ -46,6 +44,8 @@ public class DataUri {
 	private static final String CHARSET_OPTION_NAME = "charset";
 	private static final String FILENAME_OPTION_NAME = "filename";
 	private static final String CONTENT_DISPOSITION_OPTION_NAME = "content-disposition";
+	private static final String BASE64_ENCODING_NAME = "base64";
+	private static final String DATA_PREFIX = "data:";
 
 	private final String mime;
 	private final Charset charset;
@@ -159,267 +159,323 @@ public class DataUri {
 	 *     process
 	 */
 	public static DataUri parse(String uri, Charset charset) {
+		final Header header = parseHeader(uri, charset);
+
+		/* Let data be the substring of URI from position comma + 1 to
+		 * the end of URI.
+		 */
+		String data = uri.substring(header.dataStart);
+		
+		/* Let data be the result of percent-decoding data.
+		 */
+		data = percentDecode(data, charset);
+		
+		/* Invalid escapes in data are reported before an unknown
+		 * charset.
+		 */
+		header.resolveCharset();
+		
+		/* Let dataURIObject be an object consisting of the mimeType,
+		 * contentEncoding, data and supportedValues objects.
+		 */
+		final byte[] finalData = header.base64
+			? Base64.decode(data, Base64.DEFAULT) : data.getBytes(charset);
+
+		DataUri dataURIObject = new DataUri(
+			header.mime,
+			header.charset,
+			header.filename,
+			header.contentDisposition,
+			finalData
+		);
+		
+		/* return dataURIObject.
+		 */
+		return dataURIObject;
+	}
+	
+	
+	
+	/**
+	 * Parses the header of a data URI described in RFC2397, but leaves the
+	 * payload untouched until it's read from
+	 * {@link StreamingDataUri#openStream()}. Memory used by the result does
+	 * not depend on payload size.
+	 * 
+	 * @param uri A string representing the data URI
+	 * @param charset Charset to use when decoding percent encoded options
+	 *     and payload
+	 * 
+	 * @return Data URI with lazily decoded payload
+	 * @throws IllegalArgumentException iff an error occured during header
+	 *     parse process
+	 */
+	public static StreamingDataUri parseStreaming(String uri, Charset charset) {
+		final Header header = parseHeader(uri, charset);
+		header.resolveCharset();
+		return new StreamingDataUri(
+			header.mime,
+			header.charset,
+			header.filename,
+			header.contentDisposition,
+			header.base64,
+			uri,
+			header.dataStart,
+			charset
+		);
+	}
+	
+	
+	
+	private static Header parseHeader(String uri, Charset charset) {
 
 		/* If URI does not start with a case-insensitive "data:":
 		 * Throw a MALFORMED_URI exception.
+		 *
+		 * Only the prefix is compared, lowercasing the whole URI would
+		 * copy the payload as well.
 		 */
-		if (!uri.toLowerCase().startsWith("data:")) {
+		if (!uri.regionMatches(true, 0, DATA_PREFIX, 0, DATA_PREFIX.length())) {
 			throw new IllegalArgumentException("URI must start with a case-insensitive `data:'");
 		}
 
 		/* If URI does not contain a ",":
 		 * Throw a MALFORMED_URI exception.
 		 */
-		if (-1 == uri.indexOf(',')) {
+		final int comma = uri.indexOf(',');
+		if (-1 == comma) {
 			throw new IllegalArgumentException("URI must contain a `,'");
 		}
 		
-		/* Let supportedContentEncodings be an array of strings
-		 * representing the supported content encodings. (["base64"] for
-		 * example)
+		/* Let dataStart be the position after the first ",", mimeType
+		 * default to "text/plain", every supported value be unset and
+		 * contentEncoding be empty.
 		 */
-		Collection<String> supportedContentEncodings = Arrays.asList(
-			"base64"
-		);
-		
-		/* Let mimeType be a string with the value "text/plain".
-		 */
-		String mimeType = "text/plain";
+		final Header header = new Header(comma + 1);
+		final boolean turkicLocale = isTurkicLocale();
 		
-		/* Let contentEncoding be an empy string.
+		/* For each ";" separated segment s between "data:" and comma.
+		 * Empty segments have no effect at all, so unlike String.split
+		 * trailing ones need no special care.
 		 */
-		String contentEncoding = "";
+		int start = DATA_PREFIX.length();
+		boolean first = true;
+		while (start <= comma) {
+			int end = uri.indexOf(';', start);
+			if (-1 == end || end > comma) {
+				end = comma;
+			}
+			if (isPlainSegment(uri, start, end, turkicLocale)) {
+				parsePlainSegment(header, uri, start, end, first);
+			} else {
+				parseSegment(header, uri.substring(start, end), charset, first);
+			}
+			first = false;
+			start = end + 1;
+		}
+		return header;
+	}
+	
+	
+	
+	/**
+	 * A plain segment contains only US-ASCII characters which are neither
+	 * changed by percent-decoding nor by the `+' hack, and whose lowercase
+	 * form is US-ASCII in the default locale. Such a segment can be parsed in
+	 * place without creating intermediate strings.
+	 */
+	private static boolean isPlainSegment(String uri, int start, int end, boolean turkicLocale) {
+		for (int i = start; i < end; ++i) {
+			final char c = uri.charAt(i);
+			if (c >= 0x80 || c == '%' || c == '+' || c == ' ') {
+				return false;
+			}
+			if (turkicLocale && c == 'I') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	
+	private static void parsePlainSegment(Header header, String uri, int start, int end, boolean first) {
+		int eq = -1;
+		for (int i = start; i < end; ++i) {
+			if (uri.charAt(i) == '=') {
+				eq = i;
+				break;
+			}
+		}
 		
-		/* Let contentEncodingAlreadySet be a boolean with a value of
-		 * false.
+		/* If eq is not a valid position in s, name is the trimmed
+		 * segment.
 		 */
-		boolean contentEncodingAlreadySet = false;
+		if (-1 == eq) {
+			final int nameStart = trimStart(uri, start, end);
+			final int nameEnd = trimEnd(uri, nameStart, end);
+			
+			/* If s is the first element in headers and the length of
+			 * name is greater than 0: Let mimeType equal name.
+			 */
+			if (first && nameStart < nameEnd) {
+				header.mime = toLowerCase(uri, nameStart, nameEnd);
+				
+			/* Else if name is a supported content encoding.
+			 */
+			} else if (regionEquals(uri, nameStart, nameEnd, BASE64_ENCODING_NAME)) {
+				header.base64 = true;
+			}
+			return;
+		}
 		
-		/* Let supportedValues be a map of string:string pairs where the
-		 * first string in each pair represents the name of the
-		 * supported value and the second string in each pair represents
-		 * an empty string or default string value. (Example: {"charset"
-		 * : "", "filename" : "", "content-disposition" : ""})
+		/* Else name is the trimmed part before eq and value the trimmed
+		 * part after it.
 		 */
-		final Map<String, String> supportedValues = new HashMap<String, String>() {{
-			put(CHARSET_OPTION_NAME, "");
-			put(FILENAME_OPTION_NAME, "");
-			put(CONTENT_DISPOSITION_OPTION_NAME, "");
-		}};
+		final int nameStart = trimStart(uri, start, eq);
+		final int nameEnd = trimEnd(uri, nameStart, eq);
+		final int valueStart = trimStart(uri, eq + 1, end);
+		final int valueEnd = trimEnd(uri, valueStart, end);
 		
-		/* Let supportedValueSetBits be a map of string:bool pairs
-		 * representing each of the names in supportedValues with each
-		 * name set to false.
+		/* If the length of value is greater than 0 and name is found in
+		 * supportedValues which are not set yet.
 		 */
-		final Map<String, Boolean> supportedValueSetBits = new HashMap<String, Boolean>() {{
-			for (String key : supportedValues.keySet()) {
-				put(key, false);
-			}
-		}};
-		
-		/* Let comma be the position of the first "," found in URI.
+		if (valueStart == valueEnd) {
+			return;
+		}
+		if (null == header.charsetName && regionEquals(uri, nameStart, nameEnd, CHARSET_OPTION_NAME)) {
+			header.charsetName = toLowerCase(uri, valueStart, valueEnd);
+		} else if (null == header.filename && regionEquals(uri, nameStart, nameEnd, FILENAME_OPTION_NAME)) {
+			header.filename = toLowerCase(uri, valueStart, valueEnd);
+		} else if (null == header.contentDisposition && regionEquals(uri, nameStart, nameEnd, CONTENT_DISPOSITION_OPTION_NAME)) {
+			header.contentDisposition = toLowerCase(uri, valueStart, valueEnd);
+		}
+	}
+	
+	
+	
+	/**
+	 * Follows the algorithm of data_uri_rules.html step by step, used for
+	 * segments which are not plain
+	 */
+	private static void parseSegment(Header header, String s, Charset charset, boolean first) {
+
+		/* Let s equal the lowercase version of s
 		 */
-		int comma = uri.indexOf(',');
+		s = s.toLowerCase();
 		
-		/* Let temp be the substring of URI from, and including,
-		 * position 5 to, and excluding, the comma position. (between
-		 * "data:" and first ",")
+		/* Let eq be the position result of searching for "=" in s.
 		 */
-		String temp = uri.substring("data:".length(), comma);
+		final int eq = s.indexOf('=');
 		
-		/* Let headers be an array of strings returned by splitting temp
-		 * by ";".
+		/* If eq is not a valid position in s:
 		 */
-		String[] headers = temp.split(";");
-
-		/* For each string s in headers:
-		 */
-		for (int header = 0; header < headers.length; ++header) {
-			String s = headers[header];
-
-			/* Let s equal the lowercase version of s
-			 */
-			s = s.toLowerCase();
-			
-			/* Let eq be the position result of searching for "=" in
-			 * s.
-			 */
-			int eq = s.indexOf('=');
-			
-			/* Let name and value be empty strings.
-			 */
-			String name;
-			String value = "";
+		if (-1 == eq) {
 
-			/* If eq is not a valid position in s:
+			/* Let name equal the result of percent-decoding s and
+			 * trimming leading and trailing white-space.
 			 */
-			if (-1 == eq) {
-
-				/* Let name equal the result of percent-decoding
-				 * s.
-				 */
-				name = percentDecode(s, charset);
-
-				/* Let name equal the result of trimming leading
-				 * and trailing white-space from name.
-				 */
-				name = name.trim();
-				
-			/* Else:
-			 */
-			} else {
-				
-				/* Let name equal the substring of s from
-				 * position 0 to, but not including, position
-				 * eq.
-				 */
-				name = s.substring(0, eq);
-				
-				/* Let name equal the result of percent-decoding
-				 * name.
-				 */
-				name = percentDecode(name, charset);
-				
-				/* Let name equal the result of trimmnig leading
-				 * and trailing white-space from name.
-				 */
-				name = name.trim();
-				
-				/* Let value equal the substring of s from
-				 * position eq + 1 to the end of s.
-				 */
-				value = s.substring(eq + 1);
-				
-				/* Let value equal the result of precent-
-				 * decoding value.
-				 */
-				value = percentDecode(value, charset);
-				
-				/* Let value equal the result of trimming
-				 * leading and trailing white-space from value.
-				 */
-				value = value.trim();
-			}
+			final String name = percentDecode(s, charset).trim();
 			
-			/* If s is the first element in headers and eq is not a
-			 * valid position in s and the length of name is greater
-			 * than 0:
+			/* If s is the first element in headers and the length
+			 * of name is greater than 0: Let mimeType equal name.
 			 */
-			if ((0 == header) && (-1 == eq) && !name.isEmpty()) {
+			if (first && !name.isEmpty()) {
+				header.mime = name;
 				
-				/* Let mimeType equal name.
-				 */
-				mimeType = name;
-			
-			/* Else:
+			/* Else if name is found case-insensitively in
+			 * supportedContentEncodings.
 			 */
-			} else {
-
-				/* If eq is not a valid position in s:
-				 */
-				if (-1 == eq) {
-
-					/* If name is found case-insensitively
-					 * in supportedContentEncodings:
-					 */
-					final String nameCaseInsensitive = name.toLowerCase();
-					
-					if (supportedContentEncodings.contains(nameCaseInsensitive)) {
-
-						/* If contentEncodingAlreadySet
-						 * is false:
-						 */
-						if (!contentEncodingAlreadySet) {
-
-							/* Let contentEncoding
-							 * equal name.
-							 */
-							contentEncoding = name;
-							
-							/* Let contentEncodingAlreadySet
-							 * equal true.
-							 */
-							contentEncodingAlreadySet = true;
-						}
-					}
-
-				/* Else:
-				 */
-				} else {
-
-					/* If the length of value is greater
-					 * than 0 and name is found case-
-					 * insensitively in supportedValues:
-					 */
-					final String nameCaseInsensitive = name.toLowerCase();
-					
-					if (!value.isEmpty() && supportedValues.containsKey(nameCaseInsensitive)) {
-
-						/* If the corresponding value
-						 * for name found (case-
-						 * insensitivley) in
-						 * supportedValueSetBits is
-						 * false:
-						 */
-						boolean valueSet = supportedValueSetBits.get(nameCaseInsensitive);
-						
-						if (!valueSet) {
-							
-							/* Let the corresponding
-							 * value for name found
-							 * (case-insensitively)
-							 * in supportedValues
-							 * equal value.
-							 */
-							supportedValues.put(nameCaseInsensitive, value);
-							
-							/* Let the corresponding
-							 * value for name found
-							 * (case-insensitively)
-							 * in supportedValueSetBits
-							 * equal true.
-							 */
-							supportedValueSetBits.put(nameCaseInsensitive, true);
-						}
-					}
-				}
+			} else if (BASE64_ENCODING_NAME.equals(name.toLowerCase())) {
+				header.base64 = true;
 			}
-
+			return;
 		}
 		
-		/* Let data be the substring of URI from position comma + 1 to
-		 * the end of URI.
+		/* Let name equal the substring of s before eq, and value the
+		 * substring after it, both percent-decoded and trimmed.
 		 */
-		String data = uri.substring(comma + 1);
-		
-		/* Let data be the result of percent-decoding data.
-		 */
-		data = percentDecode(data, charset);
-		
-		/* Let dataURIObject be an object consisting of the mimeType,
-		 * contentEncoding, data and supportedValues objects.
-		 */
-		final String finalMimeType = mimeType;
-		final Charset finalCharset = supportedValues.get(CHARSET_OPTION_NAME).isEmpty()
-			? null : Charset.forName(supportedValues.get(CHARSET_OPTION_NAME));
-		final String finalFilename = supportedValues.get(FILENAME_OPTION_NAME).isEmpty()
-			? null : supportedValues.get(FILENAME_OPTION_NAME);
-		final String finalContentDisposition = supportedValues.get(CONTENT_DISPOSITION_OPTION_NAME).isEmpty()
-			? null : supportedValues.get(CONTENT_DISPOSITION_OPTION_NAME);
-		final byte[] finalData = "base64".equalsIgnoreCase(contentEncoding)
-			? Base64.decode(data, Base64.DEFAULT) : data.getBytes(charset);
+		final String name = percentDecode(s.substring(0, eq), charset).trim();
+		final String value = percentDecode(s.substring(eq + 1), charset).trim();
 
-		DataUri dataURIObject = new DataUri(
-			finalMimeType,
-			finalCharset,
-			finalFilename,
-			finalContentDisposition,
-			finalData
-		);
-		
-		/* return dataURIObject.
+		/* If the length of value is greater than 0 and name is found
+		 * case-insensitively in supportedValues which are not set yet.
 		 */
-		return dataURIObject;
+		if (value.isEmpty()) {
+			return;
+		}
+		final String nameCaseInsensitive = name.toLowerCase();
+		if (null == header.charsetName && CHARSET_OPTION_NAME.equals(nameCaseInsensitive)) {
+			header.charsetName = value;
+		} else if (null == header.filename && FILENAME_OPTION_NAME.equals(nameCaseInsensitive)) {
+			header.filename = value;
+		} else if (null == header.contentDisposition && CONTENT_DISPOSITION_OPTION_NAME.equals(nameCaseInsensitive)) {
+			header.contentDisposition = value;
+		}
+	}
+	
+	
+	
+	/**
+	 * String.trim() semantics on a range
+	 */
+	private static int trimStart(String s, int start, int end) {
+		while (start < end && s.charAt(start) <= ' ') {
+			++start;
+		}
+		return start;
+	}
+	
+	private static int trimEnd(String s, int start, int end) {
+		while (end > start && s.charAt(end - 1) <= ' ') {
+			--end;
+		}
+		return end;
+	}
+	
+	
+	
+	/**
+	 * @return True iff the US-ASCII range equals the lowercase string
+	 *     expected, ignoring case
+	 */
+	private static boolean regionEquals(String s, int start, int end, String expected) {
+		return end - start == expected.length()
+			&& s.regionMatches(true, start, expected, 0, expected.length());
+	}
+	
+	
+	
+	/**
+	 * Lowercase copy of an US-ASCII range, without intermediate copies if
+	 * the range is lowercase already
+	 */
+	private static String toLowerCase(String s, int start, int end) {
+		for (int i = start; i < end; ++i) {
+			final char c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				final char[] chars = new char[end - start];
+				s.getChars(start, end, chars, 0);
+				for (int j = i - start; j < chars.length; ++j) {
+					final char d = chars[j];
+					if (d >= 'A' && d <= 'Z') {
+						chars[j] = (char) (d + ('a' - 'A'));
+					}
+				}
+				return new String(chars);
+			}
+		}
+		return s.substring(start, end);
+	}
+	
+	
+	
+	/**
+	 * String.toLowerCase() maps `I' to a dotless i in these locales
+	 */
+	private static boolean isTurkicLocale() {
+		final String language = Locale.getDefault().getLanguage();
+		return "tr".equals(language) || "az".equals(language);
 	}
 	
 	
@@ -435,4 +491,29 @@ public class DataUri {
 			throw new IllegalStateException("Charset `"+ cs.name() +"' not supported", e);
 		}
 	}
+	
+	
+	
+	private static final class Header {
+		final int dataStart;
+		String mime = "text/plain";
+		String charsetName;
+		Charset charset;
+		String filename;
+		String contentDisposition;
+		boolean base64;
+		
+		Header(int dataStart) {
+			this.dataStart = dataStart;
+		}
+		
+		/* Let charset be the charset named by the supported value
+		 * "charset", if it is set.
+		 */
+		void resolveCharset() {
+			if (null != charsetName) {
+				charset = Charset.forName(charsetName);
+			}
+		}
+	}
 }
\ No newline at end of file
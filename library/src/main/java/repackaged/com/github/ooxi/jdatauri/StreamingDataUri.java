@@ -0,0 +1,480 @@
+/**
+ * Copyright (c) 2013 ooxi
+ *     https://github.com/ooxi/jdatauri
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software in a
+ *     product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source distribution.
+ */
+package repackaged.com.github.ooxi.jdatauri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A data URI whose payload is decoded on the fly while being read, created by
+ * {@link DataUri#parseStreaming(String, Charset)}
+ *
+ * Unlike {@link DataUri#getData()} no copy of the payload is ever held in
+ * memory, each stream only keeps a small fixed size buffer.
+ */
+public class StreamingDataUri {
+
+	private final String mime;
+	private final Charset charset;
+	private final String filename;
+	private final String contentDisposition;
+	private final boolean base64;
+	private final CharSequence source;
+	private final int dataStart;
+	private final Charset sourceCharset;
+
+
+
+	StreamingDataUri(String mime, Charset charset, String filename, String contentDisposition,
+			boolean base64, CharSequence source, int dataStart, Charset sourceCharset) {
+		this.mime = mime;
+		this.charset = charset;
+		this.filename = filename;
+		this.contentDisposition = contentDisposition;
+		this.base64 = base64;
+		this.source = source;
+		this.dataStart = dataStart;
+		this.sourceCharset = sourceCharset;
+	}
+
+
+
+	public String getMime() {
+		return mime;
+	}
+
+	/**
+	 * @warning May be null
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * @warning May be null
+	 */
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @warning May be null
+	 */
+	public String getContentDisposition() {
+		return contentDisposition;
+	}
+
+	public boolean isBase64() {
+		return base64;
+	}
+
+	/**
+	 * @return Length of the still encoded payload in characters, an upper
+	 *     bound of the decoded length
+	 */
+	public int getEncodedLength() {
+		return source.length() - dataStart;
+	}
+
+	/**
+	 * Opens a new stream over the payload, every call starts from the
+	 * beginning of the payload. Bytes read are the same as
+	 * {@link DataUri#getData()} of {@link DataUri#parse(String, Charset)}.
+	 */
+	public InputStream openStream() {
+		if (base64) {
+			/* DataUri.parse hands the decoded string to Base64 with
+			 * String.getBytes(), i.e. in the default charset
+			 */
+			return new Base64DecodingInputStream(new PercentDecodingInputStream(source,
+				dataStart, sourceCharset, Charset.defaultCharset()));
+		}
+		return new PercentDecodingInputStream(source, dataStart, sourceCharset, sourceCharset);
+	}
+
+
+
+	/**
+	 * Decodes a percent encoded string the way DataUri.percentDecode does,
+	 * i.e. URLDecoder.decode followed by replacing every space with `+',
+	 * then encodes the resulting characters to bytes.
+	 *
+	 * Like URLDecoder, each run of consecutive escapes is decoded as a whole
+	 * with the source charset, so malformed sequences are replaced the same
+	 * way.
+	 */
+	static final class PercentDecodingInputStream extends InputStream {
+
+		private static final int BUFFER_SIZE = 1024;
+
+		private final CharSequence source;
+		private final int end;
+		private final CharsetDecoder decoder;
+		private final CharsetEncoder encoder;
+		private int position;
+		private boolean sourceFinished;
+		private boolean decoderDirty;
+		private boolean encoderFlushed;
+
+		/* Bytes of the current run of escapes not decoded yet, characters
+		 * not encoded yet and encoded bytes not returned yet
+		 */
+		private final ByteBuffer escapes = ByteBuffer.allocate(BUFFER_SIZE);
+		private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+		private final ByteBuffer bytes;
+
+		PercentDecodingInputStream(CharSequence source, int start, Charset sourceCharset,
+				Charset outputCharset) {
+			this.source = source;
+			this.position = start;
+			this.end = source.length();
+			this.decoder = sourceCharset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.encoder = outputCharset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.bytes = ByteBuffer.allocate((int) Math.ceil(BUFFER_SIZE * encoder.maxBytesPerChar()));
+			this.bytes.flip();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!bytes.hasRemaining() && !fill()) {
+				return -1;
+			}
+			return bytes.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!bytes.hasRemaining() && !fill()) {
+				return -1;
+			}
+			final int count = Math.min(len, bytes.remaining());
+			bytes.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return bytes.remaining();
+		}
+
+		/**
+		 * Encodes next characters into bytes
+		 *
+		 * @return false iff the end of payload was reached
+		 */
+		private boolean fill() throws IOException {
+			bytes.clear();
+			while (bytes.position() == 0 && !encoderFlushed) {
+				if (!sourceFinished) {
+					decodeChars();
+				}
+				chars.flip();
+				final CoderResult result = encoder.encode(chars, bytes, sourceFinished);
+				chars.compact();
+				if (sourceFinished && result.isUnderflow()) {
+					encoderFlushed = encoder.flush(bytes).isUnderflow();
+				}
+			}
+			bytes.flip();
+			return bytes.hasRemaining();
+		}
+
+		/**
+		 * Appends decoded characters until the character buffer is full or
+		 * the source is exhausted
+		 */
+		private void decodeChars() throws IOException {
+			while (chars.hasRemaining()) {
+				while (escapes.hasRemaining() && isEscape(position)) {
+					escapes.put(unescape(position));
+					position += 3;
+				}
+				if (escapes.position() > 0 || decoderDirty) {
+					/* Decoder keeps incomplete sequences in escapes
+					 * until the run ends
+					 */
+					final boolean endOfRun = !isEscape(position);
+					final int decodedStart = chars.position();
+					escapes.flip();
+					CoderResult result = decoder.decode(escapes, chars, endOfRun);
+					escapes.compact();
+					decoderDirty = true;
+					if (endOfRun && result.isUnderflow()) {
+						result = decoder.flush(chars);
+						if (result.isUnderflow()) {
+							decoder.reset();
+							decoderDirty = false;
+						}
+					}
+					replaceSpaces(decodedStart);
+					if (result.isOverflow()) {
+						return;
+					}
+					continue;
+				}
+				if (position >= end) {
+					sourceFinished = true;
+					return;
+				}
+				while (chars.hasRemaining() && position < end) {
+					final char c = source.charAt(position);
+					if (c == '%') {
+						break;
+					}
+					/* URLDecoder turns `+' into a space, and every
+					 * space into a `+' afterwards
+					 */
+					chars.put(c == ' ' ? '+' : c);
+					position++;
+				}
+			}
+		}
+
+		private boolean isEscape(int index) {
+			return index < end && source.charAt(index) == '%';
+		}
+
+		/**
+		 * Parses an escape like URLDecoder does, with Integer.parseInt
+		 */
+		private byte unescape(int index) throws IOException {
+			if (index + 2 >= end) {
+				throw new IOException("URLDecoder: Incomplete trailing escape (%) pattern");
+			}
+			final char hiChar = source.charAt(index + 1);
+			final int lo = Character.digit(source.charAt(index + 2), 16);
+			final int value;
+			if (hiChar == '+' || hiChar == '-') {
+				value = hiChar == '-' ? -lo : lo;
+			} else {
+				final int hi = Character.digit(hiChar, 16);
+				value = hi < 0 ? -1 : (hi << 4) | lo;
+			}
+			if (lo < 0) {
+				throw new IOException("URLDecoder: Illegal hex characters in escape (%) pattern");
+			}
+			if (value < 0) {
+				throw new IOException("URLDecoder: Illegal hex characters in escape (%) pattern - negative value");
+			}
+			return (byte) value;
+		}
+
+		private void replaceSpaces(int from) {
+			for (int i = from, j = chars.position(); i < j; i++) {
+				if (chars.get(i) == ' ') {
+					chars.put(i, '+');
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Decodes base64 with the same rules as android.util.Base64 DEFAULT
+	 * flags: characters outside of the alphabet are skipped, `=' may only
+	 * pad the last quantum and nothing but skipped characters may follow
+	 * the padding
+	 */
+	static final class Base64DecodingInputStream extends InputStream {
+
+		private static final int BUFFER_SIZE = 1024;
+		private static final int SKIP = -1;
+		private static final int EQUALS = -2;
+		private static final int[] DECODE = new int[128];
+
+		static {
+			for (int i = 0; i < DECODE.length; i++) {
+				DECODE[i] = SKIP;
+			}
+			final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+			for (int i = 0; i < alphabet.length(); i++) {
+				DECODE[alphabet.charAt(i)] = i;
+			}
+			DECODE['='] = EQUALS;
+		}
+
+		private final InputStream in;
+		private final byte[] inBuffer = new byte[BUFFER_SIZE];
+		private final byte[] outBuffer = new byte[BUFFER_SIZE / 4 * 3 + 3];
+		private int outPosition;
+		private int outLength;
+		private boolean finished;
+
+		/* Same states as android.util.Base64.Decoder: 0-3 sextets of the
+		 * current quantum read, 4 expecting the second `=', 5 padded
+		 */
+		private int state;
+		private int value;
+
+		Base64DecodingInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (outPosition < outLength || fill()) {
+				return outBuffer[outPosition++] & 0xFF;
+			}
+			return -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (outPosition >= outLength && !fill()) {
+				return -1;
+			}
+			final int count = Math.min(len, outLength - outPosition);
+			System.arraycopy(outBuffer, outPosition, b, off, count);
+			outPosition += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return outLength - outPosition;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Decodes next chunk of input into outBuffer
+		 *
+		 * @return false iff the end of payload was reached
+		 */
+		private boolean fill() throws IOException {
+			outPosition = 0;
+			outLength = 0;
+			while (outLength == 0 && !finished) {
+				final int count = in.read(inBuffer, 0, inBuffer.length);
+				if (count == -1) {
+					finish();
+				} else {
+					decode(count);
+				}
+			}
+			return outLength > 0;
+		}
+
+		private void decode(int count) throws IOException {
+			int op = 0;
+			for (int i = 0; i < count; i++) {
+				final int c = inBuffer[i] & 0xFF;
+				final int d = c < DECODE.length ? DECODE[c] : SKIP;
+				if (d == SKIP) {
+					continue;
+				}
+				switch (state) {
+					case 0:
+					case 1: {
+						if (d == EQUALS) {
+							throw new IOException("bad base-64");
+						}
+						value = (value << 6) | d;
+						state++;
+						break;
+					}
+					case 2: {
+						if (d == EQUALS) {
+							outBuffer[op++] = (byte) (value >> 4);
+							state = 4;
+						} else {
+							value = (value << 6) | d;
+							state = 3;
+						}
+						break;
+					}
+					case 3: {
+						if (d == EQUALS) {
+							outBuffer[op++] = (byte) (value >> 10);
+							outBuffer[op++] = (byte) (value >> 2);
+							state = 5;
+						} else {
+							value = (value << 6) | d;
+							outBuffer[op++] = (byte) (value >> 16);
+							outBuffer[op++] = (byte) (value >> 8);
+							outBuffer[op++] = (byte) value;
+							value = 0;
+							state = 0;
+						}
+						break;
+					}
+					case 4: {
+						if (d != EQUALS) {
+							throw new IOException("bad base-64");
+						}
+						state = 5;
+						break;
+					}
+					default: {
+						/* Data after padding
+						 */
+						throw new IOException("bad base-64");
+					}
+				}
+			}
+			outLength = op;
+		}
+
+		private void finish() throws IOException {
+			finished = true;
+			switch (state) {
+				case 2: {
+					outBuffer[0] = (byte) (value >> 4);
+					outLength = 1;
+					break;
+				}
+				case 3: {
+					outBuffer[0] = (byte) (value >> 10);
+					outBuffer[1] = (byte) (value >> 2);
+					outLength = 2;
+					break;
+				}
+				case 1:
+				case 4: {
+					throw new IOException("bad base-64");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Probes headers built byte by byte, including broken and crafted ones which must fail without
+ * throwing or reading out of bounds
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class MediaProbeTest {
+
+    private static final int ROTATE_180 = 3;
+    private static final int ROTATE_90 = 6;
+    private static final int ROTATE_270 = 8;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void probesRotatedJpeg() throws IOException {
+        final MediaInfo info = probe(jpeg(exifApp1(true, ROTATE_90), sof0(3000, 4000)), "image/jpeg");
+        assertNotNull(info);
+        assertEquals(4000, info.getWidth());
+        assertEquals(3000, info.getHeight());
+        assertEquals(ROTATE_90, info.getOrientation());
+    }
+
+    @Test
+    public void probesLittleEndianExifAfterSof() throws IOException {
+        final MediaInfo info = probe(jpeg(sof0(480, 640), exifApp1(false, ROTATE_270)), "image/jpeg");
+        assertNotNull(info);
+        assertEquals(640, info.getWidth());
+        assertEquals(ROTATE_270, info.getOrientation());
+    }
+
+    @Test
+    public void jpegWithoutExifIsNormal() throws IOException {
+        final MediaInfo info = probe(jpeg(sof0(10, 20)), "image/jpeg");
+        assertNotNull(info);
+        assertEquals(MediaProbe.ORIENTATION_NORMAL, info.getOrientation());
+    }
+
+    @Test
+    public void ignoresExifPointingOutside() throws IOException {
+        final Bytes app1 = new Bytes().u8(0xFF, 0xE1).u16(2 + 6 + 8).ascii("Exif").u8(0, 0)
+                .ascii("MM").u16(0x2A).u32(0x7FFFFFF0L);
+        final MediaInfo info = probe(jpeg(app1, sof0(10, 20)), "image/jpeg");
+        assertNotNull(info);
+        assertEquals(MediaProbe.ORIENTATION_NORMAL, info.getOrientation());
+    }
+
+    @Test
+    public void rejectsBrokenJpeg() throws IOException {
+        final byte[] jpeg = jpeg(exifApp1(true, ROTATE_90), sof0(3000, 4000));
+        // Cut off inside width of SOF, before components and start of scan
+        assertNull(probe(Arrays.copyOf(jpeg, jpeg.length - 15), "image/jpeg"));
+        // Segment length smaller than the length field itself
+        assertNull(probe(jpeg(new Bytes().u8(0xFF, 0xE0).u16(1), sof0(10, 20)), "image/jpeg"));
+        // Fill bytes only, bounded instead of scanned to the end
+        final Bytes fill = new Bytes();
+        for (int i = 0; i < 4096; i++) {
+            fill.u8(0xFF);
+        }
+        assertNull(probe(jpeg(fill, sof0(10, 20)), "image/jpeg"));
+    }
+
+    @Test
+    public void probesMvhdVersion1() throws IOException {
+        // Duration too large for 32 bits
+        final long duration = 0x100000000L + 500;
+        final byte[] mp4 = isoMedia(mvhd(1, 1000, duration), trak(tkhd(0, 0, 1920, 1080)));
+        final MediaInfo info = probe(mp4, "video/mp4");
+        assertNotNull(info);
+        assertEquals(duration, info.getDuration());
+        assertEquals(1920, info.getWidth());
+        assertEquals(1080, info.getHeight());
+        assertEquals(MediaProbe.ORIENTATION_NORMAL, info.getOrientation());
+    }
+
+    @Test
+    public void probesTrackRotationSkippingAudio() throws IOException {
+        final byte[] mp4 = isoMedia(mvhd(0, 600, 3000), trak(tkhd(0, 0, 0, 0)),
+                trak(tkhd(1, 90, 1280, 720)));
+        final MediaInfo info = probe(mp4, "video/quicktime");
+        assertNotNull(info);
+        assertEquals(5000, info.getDuration());
+        assertEquals(1280, info.getWidth());
+        assertEquals(ROTATE_90, info.getOrientation());
+        final MediaInfo rotated = probe(isoMedia(mvhd(0, 1, 1), trak(tkhd(0, 180, 2, 2))), "video/mp4");
+        assertNotNull(rotated);
+        assertEquals(ROTATE_180, rotated.getOrientation());
+        final MediaInfo rotated270 = probe(isoMedia(mvhd(0, 1, 1), trak(tkhd(0, 270, 2, 2))), "video/mp4");
+        assertNotNull(rotated270);
+        assertEquals(ROTATE_270, rotated270.getOrientation());
+    }
+
+    @Test
+    public void probesLargeSizeBox() throws IOException {
+        final Bytes mvhd = mvhd(0, 1000, 2000);
+        final Bytes moov = new Bytes().u32(1).ascii("moov").u64(16 + mvhd.size()).append(mvhd);
+        final MediaInfo info = probe(new Bytes().append(ftyp()).append(moov).toByteArray(), "video/mp4");
+        assertNotNull(info);
+        assertEquals(2000, info.getDuration());
+    }
+
+    @Test
+    public void rejectsMaliciousBoxSizes() throws IOException {
+        final Bytes mvhd = mvhd(0, 1000, 2000);
+        // Larger than file
+        assertNull(probe(new Bytes().append(ftyp()).u32(0x7FFFFFFFL).ascii("moov").append(mvhd)
+                .toByteArray(), "video/mp4"));
+        // 64 bit size which overflows when added to offset, or is negative
+        assertNull(probe(new Bytes().append(ftyp()).u32(1).ascii("moov").u64(Long.MAX_VALUE)
+                .append(mvhd).toByteArray(), "video/mp4"));
+        assertNull(probe(new Bytes().append(ftyp()).u32(1).ascii("moov").u64(-16)
+                .append(mvhd).toByteArray(), "video/mp4"));
+        // Smaller than its own header
+        assertNull(probe(new Bytes().append(ftyp()).u32(4).ascii("moov").append(mvhd)
+                .toByteArray(), "video/mp4"));
+        // mvhd claiming to be larger than moov holding it
+        final Bytes moov = new Bytes().u32(8 + 16).ascii("moov").u32(0x1000).ascii("mvhd")
+                .u8(0, 0, 0, 0, 0, 0, 0, 0);
+        assertNull(probe(new Bytes().append(ftyp()).append(moov).toByteArray(), "video/mp4"));
+        // Truncated inside mvhd
+        final byte[] mp4 = isoMedia(mvhd(1, 1000, 2000));
+        assertNull(probe(Arrays.copyOf(mp4, mp4.length - 90), "video/mp4"));
+    }
+
+    @Test
+    public void givesUpOnEndlessBoxes() throws IOException {
+        final Bytes boxes = new Bytes().append(ftyp());
+        for (int i = 0; i < 1000; i++) {
+            boxes.u32(8).ascii("free");
+        }
+        boxes.append(box("moov", mvhd(0, 1000, 2000)));
+        assertNull(probe(boxes.toByteArray(), "video/mp4"));
+    }
+
+    @Test
+    public void probesVp8xWithExif() throws IOException {
+        final Bytes vp8x = new Bytes().u8(0x08, 0, 0, 0).u24le(4095).u24le(2047);
+        final byte[] webp = webp(chunk("VP8X", vp8x), chunk("VP8 ", new Bytes().u8(0, 0, 0, 0)),
+                chunk("EXIF", tiff(false, ROTATE_180)));
+        final MediaInfo info = probe(webp, "image/webp");
+        assertNotNull(info);
+        assertEquals(4096, info.getWidth());
+        assertEquals(2048, info.getHeight());
+        assertEquals(ROTATE_180, info.getOrientation());
+    }
+
+    @Test
+    public void probesVp8xWithoutExif() throws IOException {
+        final Bytes vp8x = new Bytes().u8(0, 0, 0, 0).u24le(99).u24le(49);
+        final MediaInfo info = probe(webp(chunk("VP8X", vp8x), chunk("VP8L", new Bytes())), "image/webp");
+        assertNotNull(info);
+        assertEquals(100, info.getWidth());
+        assertEquals(MediaProbe.ORIENTATION_NORMAL, info.getOrientation());
+    }
+
+    @Test
+    public void probesSimpleWebp() throws IOException {
+        final Bytes vp8 = new Bytes().u8(0, 0, 0, 0x9D, 0x01, 0x2A).u16le(320).u16le(240);
+        final MediaInfo lossy = probe(webp(chunk("VP8 ", vp8)), "image/webp");
+        assertNotNull(lossy);
+        assertEquals(320, lossy.getWidth());
+        assertEquals(240, lossy.getHeight());
+        // 14 bits each of width - 1 and height - 1
+        final long bits = 319 | 239 << 14;
+        final Bytes vp8l = new Bytes().u8(0x2F).u8((int) bits, (int) (bits >> 8), (int) (bits >> 16),
+                (int) (bits >> 24));
+        final MediaInfo lossless = probe(webp(chunk("VP8L", vp8l)), "image/webp");
+        assertNotNull(lossless);
+        assertEquals(320, lossless.getWidth());
+        assertEquals(240, lossless.getHeight());
+        assertNull(probe(webp(chunk("VP8 ", new Bytes().u8(0, 0, 0, 0, 0, 0, 0, 0, 0, 0))), "image/webp"));
+    }
+
+    @Test
+    public void probesPngGifAndBmp() throws IOException {
+        final Bytes png = new Bytes().u8(0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n').u32(13)
+                .ascii("IHDR").u32(800).u32(600);
+        final MediaInfo pngInfo = probe(png.toByteArray(), "image/png");
+        assertNotNull(pngInfo);
+        assertEquals(800, pngInfo.getWidth());
+        assertEquals(600, pngInfo.getHeight());
+        final MediaInfo gifInfo = probe(new Bytes().ascii("GIF89a").u16le(33).u16le(22).toByteArray(),
+                "image/gif");
+        assertNotNull(gifInfo);
+        assertEquals(33, gifInfo.getWidth());
+        // Top-down bitmap has negative height
+        final Bytes bmp = new Bytes().ascii("BM").u8(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0)
+                .u32le(40).u32le(64).u32le(-32);
+        final MediaInfo bmpInfo = probe(bmp.toByteArray(), "image/bmp");
+        assertNotNull(bmpInfo);
+        assertEquals(64, bmpInfo.getWidth());
+        assertEquals(32, bmpInfo.getHeight());
+        assertNull(probe(Arrays.copyOf(png.toByteArray(), 20), "image/png"));
+    }
+
+    @Test
+    public void rejectsUnsupportedTypes() throws IOException {
+        assertNull(probe(jpeg(sof0(10, 20)), null));
+        assertNull(probe(jpeg(sof0(10, 20)), "application/octet-stream"));
+    }
+
+    private MediaInfo probe(byte[] content, String mimeType) throws IOException {
+        final File file = mFolder.newFile();
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+        return MediaProbe.probe(file, mimeType);
+    }
+
+    private static byte[] jpeg(Bytes... segments) throws IOException {
+        final Bytes jpeg = new Bytes().u8(0xFF, 0xD8);
+        for (Bytes segment : segments) {
+            jpeg.append(segment);
+        }
+        // Start of scan
+        return jpeg.u8(0xFF, 0xDA).u16(2).toByteArray();
+    }
+
+    private static Bytes sof0(int height, int width) throws IOException {
+        return new Bytes().u8(0xFF, 0xC0).u16(17).u8(8).u16(height).u16(width).u8(3)
+                .u8(1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1);
+    }
+
+    private static Bytes exifApp1(boolean bigEndian, int orientation) throws IOException {
+        final Bytes tiff = tiff(bigEndian, orientation);
+        return new Bytes().u8(0xFF, 0xE1).u16(2 + 6 + tiff.size()).ascii("Exif").u8(0, 0).append(tiff);
+    }
+
+    /**
+     * TIFF header and IFD0 with a DateTime entry before orientation
+     */
+    private static Bytes tiff(boolean bigEndian, int orientation) throws IOException {
+        final Bytes tiff = new Bytes();
+        if (bigEndian) {
+            tiff.ascii("MM").u16(0x2A).u32(8).u16(2)
+                    .u16(0x0132).u16(2).u32(20).u32(0x100)
+                    .u16(0x0112).u16(3).u32(1).u16(orientation).u16(0)
+                    .u32(0);
+        } else {
+            tiff.ascii("II").u16le(0x2A).u32le(8).u16le(2)
+                    .u16le(0x0132).u16le(2).u32le(20).u32le(0x100)
+                    .u16le(0x0112).u16le(3).u32le(1).u16le(orientation).u16le(0)
+                    .u32le(0);
+        }
+        return tiff;
+    }
+
+    private static byte[] isoMedia(Bytes... moovChildren) throws IOException {
+        final Bytes moov = new Bytes();
+        for (Bytes child : moovChildren) {
+            moov.append(child);
+        }
+        return new Bytes().append(ftyp()).append(box("moov", moov)).toByteArray();
+    }
+
+    private static Bytes ftyp() throws IOException {
+        return box("ftyp", new Bytes().ascii("isom").u32(0).ascii("isom"));
+    }
+
+    private static Bytes mvhd(int version, long timescale, long duration) throws IOException {
+        final Bytes mvhd = new Bytes().u8(version, 0, 0, 0);
+        if (version == 1) {
+            mvhd.u64(0).u64(0).u32(timescale).u64(duration);
+        } else {
+            mvhd.u32(0).u32(0).u32(timescale).u32(duration);
+        }
+        // Rate, volume, reserved, matrix, pre-defined and next track ID
+        mvhd.u32(0x10000).u16(0x100).zeros(10).zeros(36).zeros(24).u32(2);
+        return box("mvhd", mvhd);
+    }
+
+    private static Bytes trak(Bytes tkhd) throws IOException {
+        return box("trak", tkhd);
+    }
+
+    private static Bytes tkhd(int version, int rotation, int width, int height) throws IOException {
+        final Bytes tkhd = new Bytes().u8(version, 0, 0, 3);
+        if (version == 1) {
+            tkhd.u64(0).u64(0).u32(1).u32(0).u64(0);
+        } else {
+            tkhd.u32(0).u32(0).u32(1).u32(0).u32(0);
+        }
+        // Reserved, layer, alternate group, volume and reserved
+        tkhd.zeros(8).zeros(8);
+        final long one = 0x10000, minusOne = -0x10000 & 0xFFFFFFFFL;
+        final long a, b, c, d;
+        switch (rotation) {
+            case 90: {
+                a = 0;
+                b = one;
+                c = minusOne;
+                d = 0;
+                break;
+            }
+            case 180: {
+                a = minusOne;
+                b = 0;
+                c = 0;
+                d = minusOne;
+                break;
+            }
+            case 270: {
+                a = 0;
+                b = minusOne;
+                c = one;
+                d = 0;
+                break;
+            }
+            default: {
+                a = one;
+                b = 0;
+                c = 0;
+                d = one;
+                break;
+            }
+        }
+        tkhd.u32(a).u32(b).u32(0).u32(c).u32(d).u32(0).u32(0).u32(0).u32(0x40000000L);
+        tkhd.u32((long) width << 16).u32((long) height << 16);
+        return box("tkhd", tkhd);
+    }
+
+    private static Bytes box(String type, Bytes content) throws IOException {
+        return new Bytes().u32(8 + content.size()).ascii(type).append(content);
+    }
+
+    private static byte[] webp(Bytes... chunks) throws IOException {
+        final Bytes body = new Bytes().ascii("WEBP");
+        for (Bytes chunk : chunks) {
+            body.append(chunk);
+        }
+        return new Bytes().ascii("RIFF").u32le(body.size()).append(body).toByteArray();
+    }
+
+    private static Bytes chunk(String fourCC, Bytes content) throws IOException {
+        final Bytes chunk = new Bytes().ascii(fourCC).u32le(content.size()).append(content);
+        // Padded to even size
+        if ((content.size() & 1) != 0) {
+            chunk.u8(0);
+        }
+        return chunk;
+    }
+
+    /**
+     * Builds content with big endian integers by default, as ISO media and JPEG use
+     */
+    private static class Bytes {
+
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        Bytes u8(int... values) throws IOException {
+            for (int value : values) {
+                mOut.writeByte(value);
+            }
+            return this;
+        }
+
+        Bytes u16(int value) throws IOException {
+            mOut.writeShort(value);
+            return this;
+        }
+
+        Bytes u32(long value) throws IOException {
+            mOut.writeInt((int) value);
+            return this;
+        }
+
+        Bytes u64(long value) throws IOException {
+            mOut.writeLong(value);
+            return this;
+        }
+
+        Bytes u16le(int value) throws IOException {
+            return u8(value, value >> 8);
+        }
+
+        Bytes u24le(int value) throws IOException {
+            return u8(value, value >> 8, value >> 16);
+        }
+
+        Bytes u32le(long value) throws IOException {
+            return u8((int) value, (int) (value >> 8), (int) (value >> 16), (int) (value >> 24));
+        }
+
+        Bytes ascii(String text) throws IOException {
+            mOut.writeBytes(text);
+            return this;
+        }
+
+        Bytes zeros(int count) throws IOException {
+            mOut.write(new byte[count]);
+            return this;
+        }
+
+        Bytes append(Bytes other) throws IOException {
+            mOut.write(other.toByteArray());
+            return this;
+        }
+
+        int size() {
+            return mBytes.size();
+        }
+
+        byte[] toByteArray() {
+            return mBytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Sniffs headers of real formats, and text or binary content that only partly looks like them
+ */
+public class MediaTypeSnifferTest {
+
+    @Test
+    public void sniffsImages() throws IOException {
+        assertEquals("image/jpeg", sniff(bytes(0xFF, 0xD8, 0xFF, 0xE0, 0x00, 0x10)));
+        assertEquals("image/png", sniff(bytes(0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n')));
+        assertEquals("image/gif", sniff(ascii("GIF87a")));
+        assertEquals("image/gif", sniff(ascii("GIF89a")));
+        assertEquals("image/webp", sniff(concat(ascii("RIFF"), bytes(0x24, 0, 0, 0), ascii("WEBPVP8 "))));
+    }
+
+    @Test
+    public void sniffsBmpByDibHeaderSize() throws IOException {
+        assertEquals("image/bmp", sniff(bmp(40)));
+        // OS/2 BITMAPCOREHEADER
+        assertEquals("image/bmp", sniff(bmp(12)));
+        assertEquals("image/bmp", sniff(bmp(124)));
+    }
+
+    @Test
+    public void rejectsBmpLookalikes() throws IOException {
+        assertNull(sniff(ascii("BM: notes about the benchmark run")));
+        // Zero padded like a DIB header, but of no known size
+        assertNull(sniff(bmp(1)));
+        assertNull(sniff(bmp(0)));
+        // Too short to have a DIB header
+        assertNull(sniff(Arrays.copyOf(bmp(40), 20)));
+    }
+
+    @Test
+    public void sniffsIsoMediaBrands() throws IOException {
+        assertEquals("video/mp4", sniff(ftyp("isom")));
+        assertEquals("video/quicktime", sniff(ftyp("qt  ")));
+        assertEquals("image/heic", sniff(ftyp("heic")));
+        assertEquals("image/avif", sniff(ftyp("avif")));
+        assertEquals("video/3gpp", sniff(ftyp("3gp4")));
+        assertEquals("audio/mp4", sniff(ftyp("M4A ")));
+        // Brand cut off
+        assertEquals("video/mp4", sniff(Arrays.copyOf(ftyp("heic"), 10)));
+    }
+
+    @Test
+    public void sniffsQuickTimeWithoutFtyp() throws IOException {
+        assertEquals("video/quicktime", sniff(concat(bytes(0, 0, 0, 8), ascii("wide"),
+                bytes(0, 0, 0x10, 0), ascii("mdat"))));
+        assertEquals("video/quicktime", sniff(concat(bytes(0, 0, 0x01, 0x6C), ascii("moov"),
+                bytes(0, 0, 0, 0x6C), ascii("mvhd"))));
+        // Size 0 extends to end of file
+        assertEquals("video/quicktime", sniff(concat(bytes(0, 0, 0, 0), ascii("mdat"))));
+    }
+
+    @Test
+    public void rejectsQuickTimeLookalikes() throws IOException {
+        // Text with an atom type at offset 4
+        assertNull(sniff(ascii("Set free the bytes")));
+        assertNull(sniff(ascii("Now skip to the end")));
+        assertNull(sniff(ascii("The mdat atom holds media data")));
+        // Sizes below header size are never valid
+        assertNull(sniff(concat(bytes(0, 0, 0, 4), ascii("moov"))));
+        assertNull(sniff(ascii("moov")));
+    }
+
+    @Test
+    public void sniffsMatroskaDocType() throws IOException {
+        assertEquals("video/webm", sniff(ebml("webm", 4)));
+        assertEquals("video/x-matroska", sniff(ebml("matroska", 8)));
+        // Doc type size runs past the prefix
+        assertEquals("video/x-matroska", sniff(ebml("webm", 0x7F)));
+    }
+
+    @Test
+    public void rejectsUnknownAndEmpty() throws IOException {
+        assertNull(sniff(new byte[0]));
+        assertNull(sniff(bytes(0xFF, 0xD8)));
+        assertNull(sniff(ascii("<!DOCTYPE html>")));
+    }
+
+    @Test
+    public void readsPrefixAcrossShortReads() throws IOException {
+        final byte[] content = concat(ftyp("heic"), new byte[100]);
+        final InputStream is = new ByteArrayInputStream(content) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                // One byte at a time, like a slow network stream
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        final byte[] prefix = new byte[MediaTypeSniffer.PREFIX_LENGTH];
+        assertEquals(prefix.length, MediaTypeSniffer.readPrefix(is, prefix));
+        assertArrayEquals(Arrays.copyOf(content, prefix.length), prefix);
+        final byte[] shortPrefix = new byte[MediaTypeSniffer.PREFIX_LENGTH];
+        assertEquals(4, MediaTypeSniffer.readPrefix(new ByteArrayInputStream(ascii("GIF8")), shortPrefix));
+    }
+
+    /**
+     * Sniffs from a buffer of {@link MediaTypeSniffer#PREFIX_LENGTH}, as importer does
+     */
+    private static String sniff(byte[] content) throws IOException {
+        final byte[] prefix = new byte[MediaTypeSniffer.PREFIX_LENGTH];
+        final int length = MediaTypeSniffer.readPrefix(new ByteArrayInputStream(content), prefix);
+        return MediaTypeSniffer.sniff(prefix, length);
+    }
+
+    private static byte[] bmp(int dibHeaderSize) throws IOException {
+        return concat(ascii("BM"), bytes(0x36, 0x10, 0, 0, 0, 0, 0, 0, 0x36, 0, 0, 0),
+                bytes(dibHeaderSize, 0, 0, 0), bytes(0x20, 0, 0, 0, 0x20, 0, 0, 0, 1, 0, 0x18, 0));
+    }
+
+    private static byte[] ftyp(String brand) throws IOException {
+        return concat(bytes(0, 0, 0, 0x18), ascii("ftyp"), ascii(brand), bytes(0, 0, 0, 0),
+                ascii("isom"), ascii("mp41"));
+    }
+
+    /**
+     * EBML header with a DocType element of {@code docType}, its size written as {@code size}
+     */
+    private static byte[] ebml(String docType, int size) throws IOException {
+        return concat(bytes(0x1A, 0x45, 0xDF, 0xA3, 0x9F, 0x42, 0x86, 0x81, 0x01),
+                bytes(0x42, 0x82, 0x80 | size), ascii(docType));
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] ascii(String text) throws UnsupportedEncodingException {
+        return text.getBytes("US-ASCII");
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+}
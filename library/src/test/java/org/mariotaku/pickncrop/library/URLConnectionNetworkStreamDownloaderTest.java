@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mariotaku.pickncrop.library;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mariotaku.pickncrop.library.MediaPickerActivity.NetworkStreamDownloader.DownloadResult;
+import org.mariotaku.pickncrop.library.URLConnectionNetworkStreamDownloader.ResumeException;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Downloads from a loopback server answering each connection with a scripted response, some of
+ * them cut off halfway
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class URLConnectionNetworkStreamDownloaderTest {
+
+    private static final int HALF = 32 * 1024;
+
+    private byte[] mContent;
+    private URLConnectionNetworkStreamDownloader mDownloader;
+    private LoopbackServer mServer;
+
+    @Before
+    public void setUp() {
+        mContent = new byte[HALF * 2];
+        new Random(0).nextBytes(mContent);
+        mDownloader = new URLConnectionNetworkStreamDownloader(RuntimeEnvironment.application);
+        mDownloader.setConnectTimeout(5000);
+        mDownloader.setReadTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void retriesServerError() throws IOException {
+        mServer = new LoopbackServer(
+                response("503 Service Unavailable", new byte[0], 0),
+                response("200 OK", mContent, mContent.length, "ETag: \"v1\""));
+        assertArrayEquals(mContent, download());
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+    @Test
+    public void resumesWithRange() throws IOException {
+        mServer = new LoopbackServer(
+                response("200 OK", mContent, HALF, "ETag: \"v1\""),
+                response("206 Partial Content", Arrays.copyOfRange(mContent, HALF, mContent.length),
+                        HALF, "ETag: \"v1\"", "Content-Range: bytes " + HALF + "-"
+                                + (mContent.length - 1) + "/" + mContent.length));
+        assertArrayEquals(mContent, download());
+        final String resumeRequest = mServer.getRequests().get(1);
+        assertTrue(resumeRequest, resumeRequest.contains("\r\nRange: bytes=" + HALF + "-\r\n"));
+        assertTrue(resumeRequest, resumeRequest.contains("\r\nIf-Range: \"v1\"\r\n"));
+    }
+
+    @Test
+    public void resumesWithFullResponseOfSameResource() throws IOException {
+        mServer = new LoopbackServer(
+                response("200 OK", mContent, HALF, "Last-Modified: Sat, 17 Oct 2026 00:00:00 GMT"),
+                response("200 OK", mContent, mContent.length, "Last-Modified: Sat, 17 Oct 2026 00:00:00 GMT"));
+        assertArrayEquals(mContent, download());
+    }
+
+    @Test
+    public void failsResumingChangedResource() throws IOException {
+        final byte[] changed = mContent.clone();
+        changed[HALF + 1]++;
+        mServer = new LoopbackServer(
+                response("200 OK", mContent, HALF, "ETag: \"v1\""),
+                response("200 OK", changed, changed.length, "ETag: \"v2\""));
+        try {
+            download();
+            fail("Changed resource spliced");
+        } catch (ResumeException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void failsResumingWithoutValidator() throws IOException {
+        mServer = new LoopbackServer(
+                response("200 OK", mContent, HALF),
+                response("206 Partial Content", Arrays.copyOfRange(mContent, HALF, mContent.length),
+                        HALF, "Content-Range: bytes " + HALF + "-" + (mContent.length - 1) + "/"
+                                + mContent.length));
+        try {
+            download();
+            fail("Resumed without validator");
+        } catch (ResumeException expected) {
+            // Expected
+        }
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    @Test
+    public void doesNotRetryClientError() throws IOException {
+        mServer = new LoopbackServer(
+                response("404 Not Found", new byte[0], 0),
+                response("200 OK", mContent, mContent.length));
+        try {
+            download();
+            fail("Client error ignored");
+        } catch (URLConnectionNetworkStreamDownloader.HttpStatusException e) {
+            assertEquals(404, e.getStatusCode());
+        }
+        assertFalse(mServer.getRequests().size() > 1);
+    }
+
+    @Test
+    public void cancelStopsWaitingToRetry() throws Exception {
+        mServer = new LoopbackServer(
+                response("503 Service Unavailable", new byte[0], 0),
+                response("503 Service Unavailable", new byte[0], 0),
+                response("503 Service Unavailable", new byte[0], 0));
+        final Thread canceler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Well into backoff of first retry, which waits a second
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                mDownloader.cancel();
+            }
+        });
+        canceler.start();
+        final long start = System.nanoTime();
+        try {
+            download();
+            fail("Canceled download completed");
+        } catch (InterruptedIOException expected) {
+            // Expected
+        }
+        canceler.join();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    @Test
+    public void canceledDownloaderDoesNotConnect() throws IOException {
+        mServer = new LoopbackServer(response("200 OK", mContent, mContent.length));
+        mDownloader.cancel();
+        try {
+            download();
+            fail("Canceled download completed");
+        } catch (InterruptedIOException expected) {
+            // Expected
+        }
+        assertEquals(0, mServer.getRequests().size());
+    }
+
+    private byte[] download() throws IOException {
+        final DownloadResult result = mDownloader.get(Uri.parse(mServer.getUrl()));
+        final InputStream is = result.getStream();
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * @param sent Bytes of {@code body} actually sent before closing connection
+     */
+    private static byte[] response(String status, byte[] body, int sent, String... headers)
+            throws IOException {
+        final StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        head.append("Content-Type: application/octet-stream\r\n");
+        head.append("Content-Length: ").append(body.length).append("\r\n");
+        head.append("Connection: close\r\n");
+        for (String header : headers) {
+            head.append(header).append("\r\n");
+        }
+        head.append("\r\n");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(head.toString().getBytes("US-ASCII"));
+        out.write(body, 0, sent);
+        return out.toByteArray();
+    }
+
+    /**
+     * Answers n-th connection with n-th response then closes it, connections after the last
+     * response are closed right away
+     */
+    private static class LoopbackServer implements Runnable {
+
+        private final ServerSocket mServerSocket;
+        private final byte[][] mResponses;
+        private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+
+        LoopbackServer(byte[]... responses) throws IOException {
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            mResponses = responses;
+            final Thread thread = new Thread(this, "LoopbackServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/media";
+        }
+
+        List<String> getRequests() {
+            return new ArrayList<>(mRequests);
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; ; i++) {
+                    final Socket socket = mServerSocket.accept();
+                    try {
+                        if (i >= mResponses.length) continue;
+                        mRequests.add(readRequest(socket.getInputStream()));
+                        final OutputStream os = socket.getOutputStream();
+                        os.write(mResponses[i]);
+                        os.flush();
+                        socket.shutdownOutput();
+                    } finally {
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private static String readRequest(InputStream is) throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int c;
+            while (!endsWith(sb, "\r\n\r\n") && (c = is.read()) != -1) {
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        private static boolean endsWith(StringBuilder sb, String suffix) {
+            final int start = sb.length() - suffix.length();
+            return start >= 0 && sb.indexOf(suffix, start) == start;
+        }
+    }
+}
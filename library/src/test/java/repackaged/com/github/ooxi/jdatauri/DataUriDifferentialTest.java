@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package repackaged.com.github.ooxi.jdatauri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Parses every URI of {@code data-uri-corpus.txt} with {@link DataUri} and with
+ * {@link LegacyDataUri}, under locales whose lowercasing differs, and expects the same result or
+ * the same exception
+ * <p>
+ * Runs with Robolectric, android-all classes such as {@link android.util.Base64} can't be used
+ * on a plain JVM.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class DataUriDifferentialTest {
+
+    private static final Locale[] LOCALES = {Locale.ENGLISH, new Locale("tr"), new Locale("lt")};
+    private static final Charset[] CHARSETS = {Charset.forName("UTF-8"), Charset.forName("ISO-8859-1")};
+
+    private Locale mDefaultLocale;
+    private List<String> mCorpus;
+
+    @Before
+    public void setUp() throws IOException {
+        mDefaultLocale = Locale.getDefault();
+        mCorpus = readCorpus();
+        assertFalse(mCorpus.isEmpty());
+    }
+
+    @After
+    public void tearDown() {
+        Locale.setDefault(mDefaultLocale);
+    }
+
+    @Test
+    public void parseMatchesLegacy() {
+        for (Locale locale : LOCALES) {
+            Locale.setDefault(locale);
+            for (Charset charset : CHARSETS) {
+                for (String uri : mCorpus) {
+                    final String message = uri + " in " + locale + " with " + charset;
+                    assertEquals(message, legacyParse(uri, charset), parse(uri, charset));
+                }
+            }
+        }
+    }
+
+    static List<String> readCorpus() throws IOException {
+        final InputStream is = DataUriDifferentialTest.class.getResourceAsStream("data-uri-corpus.txt");
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            final List<String> corpus = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+                corpus.add(line);
+            }
+            return corpus;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return Parsed URI, or class of exception thrown
+     */
+    static Object parse(String uri, Charset charset) {
+        try {
+            return DataUri.parse(uri, charset);
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    static Object legacyParse(String uri, Charset charset) {
+        try {
+            return LegacyDataUri.parse(uri, charset);
+        } catch (RuntimeException e) {
+            return e.getClass();
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright (c) 2013 ooxi
+ *     https://github.com/ooxi/jdatauri
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose,
+ * including commercial applications, and to alter it and redistribute it
+ * freely, subject to the following restrictions:
+ *
+ *  1. The origin of this software must not be misrepresented; you must not
+ *     claim that you wrote the original software. If you use this software in a
+ *     product, an acknowledgment in the product documentation would be
+ *     appreciated but is not required.
+ *
+ *  2. Altered source versions must be plainly marked as such, and must not be
+ *     misrepresented as being the original software.
+ *
+ *  3. This notice may not be removed or altered from any source distribution.
+ */
+package repackaged.com.github.ooxi.jdatauri;
+
+import android.util.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link DataUri#parse(String, Charset)} as it was before the header was
+ * parsed in place, kept unchanged as reference for differential tests
+ */
+final class LegacyDataUri {
+
+	private static final String CHARSET_OPTION_NAME = "charset";
+	private static final String FILENAME_OPTION_NAME = "filename";
+	private static final String CONTENT_DISPOSITION_OPTION_NAME = "content-disposition";
+
+
+
+	private LegacyDataUri() {
+	}
+
+
+
+	static DataUri parse(String uri, Charset charset) {
+
+		/* If URI does not start with a case-insensitive "data:":
+		 * Throw a MALFORMED_URI exception.
+		 */
+		if (!uri.toLowerCase().startsWith("data:")) {
+			throw new IllegalArgumentException("URI must start with a case-insensitive `data:'");
+		}
+
+		/* If URI does not contain a ",":
+		 * Throw a MALFORMED_URI exception.
+		 */
+		if (-1 == uri.indexOf(',')) {
+			throw new IllegalArgumentException("URI must contain a `,'");
+		}
+		
+		/* Let supportedContentEncodings be an array of strings
+		 * representing the supported content encodings. (["base64"] for
+		 * example)
+		 */
+		Collection<String> supportedContentEncodings = Arrays.asList(
+			"base64"
+		);
+		
+		/* Let mimeType be a string with the value "text/plain".
+		 */
+		String mimeType = "text/plain";
+		
+		/* Let contentEncoding be an empy string.
+		 */
+		String contentEncoding = "";
+		
+		/* Let contentEncodingAlreadySet be a boolean with a value of
+		 * false.
+		 */
+		boolean contentEncodingAlreadySet = false;
+		
+		/* Let supportedValues be a map of string:string pairs where the
+		 * first string in each pair represents the name of the
+		 * supported value and the second string in each pair represents
+		 * an empty string or default string value. (Example: {"charset"
+		 * : "", "filename" : "", "content-disposition" : ""})
+		 */
+		final Map<String, String> supportedValues = new HashMap<String, String>() {{
+			put(CHARSET_OPTION_NAME, "");
+			put(FILENAME_OPTION_NAME, "");
+			put(CONTENT_DISPOSITION_OPTION_NAME, "");
+		}};
+		
+		/* Let supportedValueSetBits be a map of string:bool pairs
+		 * representing each of the names in supportedValues with each
+		 * name set to false.
+		 */
+		final Map<String, Boolean> supportedValueSetBits = new HashMap<String, Boolean>() {{
+			for (String key : supportedValues.keySet()) {
+				put(key, false);
+			}
+		}};
+		
+		/* Let comma be the position of the first "," found in URI.
+		 */
+		int comma = uri.indexOf(',');
+		
+		/* Let temp be the substring of URI from, and including,
+		 * position 5 to, and excluding, the comma position. (between
+		 * "data:" and first ",")
+		 */
+		String temp = uri.substring("data:".length(), comma);
+		
+		/* Let headers be an array of strings returned by splitting temp
+		 * by ";".
+		 */
+		String[] headers = temp.split(";");
+
+		/* For each string s in headers:
+		 */
+		for (int header = 0; header < headers.length; ++header) {
+			String s = headers[header];
+
+			/* Let s equal the lowercase version of s
+			 */
+			s = s.toLowerCase();
+			
+			/* Let eq be the position result of searching for "=" in
+			 * s.
+			 */
+			int eq = s.indexOf('=');
+			
+			/* Let name and value be empty strings.
+			 */
+			String name;
+			String value = "";
+
+			/* If eq is not a valid position in s:
+			 */
+			if (-1 == eq) {
+
+				/* Let name equal the result of percent-decoding
+				 * s.
+				 */
+				name = percentDecode(s, charset);
+
+				/* Let name equal the result of trimming leading
+				 * and trailing white-space from name.
+				 */
+				name = name.trim();
+				
+			/* Else:
+			 */
+			} else {
+				
+				/* Let name equal the substring of s from
+				 * position 0 to, but not including, position
+				 * eq.
+				 */
+				name = s.substring(0, eq);
+				
+				/* Let name equal the result of percent-decoding
+				 * name.
+				 */
+				name = percentDecode(name, charset);
+				
+				/* Let name equal the result of trimmnig leading
+				 * and trailing white-space from name.
+				 */
+				name = name.trim();
+				
+				/* Let value equal the substring of s from
+				 * position eq + 1 to the end of s.
+				 */
+				value = s.substring(eq + 1);
+				
+				/* Let value equal the result of precent-
+				 * decoding value.
+				 */
+				value = percentDecode(value, charset);
+				
+				/* Let value equal the result of trimming
+				 * leading and trailing white-space from value.
+				 */
+				value = value.trim();
+			}
+			
+			/* If s is the first element in headers and eq is not a
+			 * valid position in s and the length of name is greater
+			 * than 0:
+			 */
+			if ((0 == header) && (-1 == eq) && !name.isEmpty()) {
+				
+				/* Let mimeType equal name.
+				 */
+				mimeType = name;
+			
+			/* Else:
+			 */
+			} else {
+
+				/* If eq is not a valid position in s:
+				 */
+				if (-1 == eq) {
+
+					/* If name is found case-insensitively
+					 * in supportedContentEncodings:
+					 */
+					final String nameCaseInsensitive = name.toLowerCase();
+					
+					if (supportedContentEncodings.contains(nameCaseInsensitive)) {
+
+						/* If contentEncodingAlreadySet
+						 * is false:
+						 */
+						if (!contentEncodingAlreadySet) {
+
+							/* Let contentEncoding
+							 * equal name.
+							 */
+							contentEncoding = name;
+							
+							/* Let contentEncodingAlreadySet
+							 * equal true.
+							 */
+							contentEncodingAlreadySet = true;
+						}
+					}
+
+				/* Else:
+				 */
+				} else {
+
+					/* If the length of value is greater
+					 * than 0 and name is found case-
+					 * insensitively in supportedValues:
+					 */
+					final String nameCaseInsensitive = name.toLowerCase();
+					
+					if (!value.isEmpty() && supportedValues.containsKey(nameCaseInsensitive)) {
+
+						/* If the corresponding value
+						 * for name found (case-
+						 * insensitivley) in
+						 * supportedValueSetBits is
+						 * false:
+						 */
+						boolean valueSet = supportedValueSetBits.get(nameCaseInsensitive);
+						
+						if (!valueSet) {
+							
+							/* Let the corresponding
+							 * value for name found
+							 * (case-insensitively)
+							 * in supportedValues
+							 * equal value.
+							 */
+							supportedValues.put(nameCaseInsensitive, value);
+							
+							/* Let the corresponding
+							 * value for name found
+							 * (case-insensitively)
+							 * in supportedValueSetBits
+							 * equal true.
+							 */
+							supportedValueSetBits.put(nameCaseInsensitive, true);
+						}
+					}
+				}
+			}
+
+		}
+		
+		/* Let data be the substring of URI from position comma + 1 to
+		 * the end of URI.
+		 */
+		String data = uri.substring(comma + 1);
+		
+		/* Let data be the result of percent-decoding data.
+		 */
+		data = percentDecode(data, charset);
+		
+		/* Let dataURIObject be an object consisting of the mimeType,
+		 * contentEncoding, data and supportedValues objects.
+		 */
+		final String finalMimeType = mimeType;
+		final Charset finalCharset = supportedValues.get(CHARSET_OPTION_NAME).isEmpty()
+			? null : Charset.forName(supportedValues.get(CHARSET_OPTION_NAME));
+		final String finalFilename = supportedValues.get(FILENAME_OPTION_NAME).isEmpty()
+			? null : supportedValues.get(FILENAME_OPTION_NAME);
+		final String finalContentDisposition = supportedValues.get(CONTENT_DISPOSITION_OPTION_NAME).isEmpty()
+			? null : supportedValues.get(CONTENT_DISPOSITION_OPTION_NAME);
+		final byte[] finalData = "base64".equalsIgnoreCase(contentEncoding)
+			? Base64.decode(data, Base64.DEFAULT) : data.getBytes(charset);
+
+		DataUri dataURIObject = new DataUri(
+			finalMimeType,
+			finalCharset,
+			finalFilename,
+			finalContentDisposition,
+			finalData
+		);
+		
+		/* return dataURIObject.
+		 */
+		return dataURIObject;
+	}
+	
+	
+	
+	/**
+	 * @warning URLDecoder.decode does not do percentDecoding, but instead decodes
+	 *     application/x-www-form-urlencoded therefore the .replace hack
+	 */
+	private static String percentDecode(String s, Charset cs) {
+		try {
+			return URLDecoder.decode(s, cs.name()).replace(' ', '+');
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("Charset `"+ cs.name() +"' not supported", e);
+		}
+	}
+}
\ No newline at end of file
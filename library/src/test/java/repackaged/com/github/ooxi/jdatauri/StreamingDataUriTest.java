@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 mariotaku
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package repackaged.com.github.ooxi.jdatauri;
+
+import android.util.Base64;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads payload of URIs from {@code data-uri-corpus.txt} through
+ * {@link StreamingDataUri#openStream()}, and expects the same bytes as {@link DataUri#getData()}
+ * or both to fail
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 27)
+public class StreamingDataUriTest {
+
+    private static final Charset[] CHARSETS = {Charset.forName("UTF-8"), Charset.forName("ISO-8859-1")};
+
+    @Test
+    public void streamMatchesParse() throws IOException {
+        for (Charset charset : CHARSETS) {
+            for (String uri : DataUriDifferentialTest.readCorpus()) {
+                assertStreamMatches(uri, charset);
+            }
+        }
+    }
+
+    @Test
+    public void streamMatchesParseAcrossBuffers() throws IOException {
+        final Random random = new Random(0);
+        final byte[] data = new byte[10000];
+        random.nextBytes(data);
+        final String base64 = Base64.encodeToString(data, Base64.DEFAULT);
+        final StringBuilder escaped = new StringBuilder("data:,");
+        for (byte b : data) {
+            escaped.append(String.format("%%%02X", b & 0xFF));
+        }
+        final StringBuilder mixed = new StringBuilder("data:,");
+        for (int i = 0; i < 3000; i++) {
+            mixed.append(i % 3 == 0 ? "%E2%82%AC" : i % 3 == 1 ? "a b+" : "ä😀");
+        }
+        for (Charset charset : CHARSETS) {
+            assertStreamMatches("data:;base64," + base64, charset);
+            assertStreamMatches("data:;base64," + base64.replace('+', ' '), charset);
+            assertStreamMatches("data:;base64," + base64 + "=", charset);
+            assertStreamMatches(escaped.toString(), charset);
+            assertStreamMatches(mixed.toString(), charset);
+        }
+    }
+
+    private static void assertStreamMatches(String uri, Charset charset) {
+        final String message = uri + " with " + charset;
+        final Object expected = parse(uri, charset);
+        assertEquals(message, toString(expected), toString(readStream(uri, charset, 8192)));
+        assertEquals(message, toString(expected), toString(readStream(uri, charset, 1)));
+    }
+
+    /**
+     * @return Payload, or class of exception thrown
+     */
+    private static Object parse(String uri, Charset charset) {
+        try {
+            return DataUri.parse(uri, charset).getData();
+        } catch (IllegalArgumentException e) {
+            return Exception.class;
+        }
+    }
+
+    private static Object readStream(String uri, Charset charset, int bufferSize) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final InputStream is = DataUri.parseStreaming(uri, charset).openStream();
+            final byte[] buffer = new byte[bufferSize];
+            try {
+                int count;
+                while ((count = is.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            return Exception.class;
+        }
+        final byte[] bytes = out.toByteArray();
+        if (bufferSize > 1) {
+            assertArrayEquals(bytes, readSingleBytes(uri, charset));
+        }
+        return bytes;
+    }
+
+    private static byte[] readSingleBytes(String uri, Charset charset) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final InputStream is = DataUri.parseStreaming(uri, charset).openStream();
+            try {
+                int b;
+                while ((b = is.read()) != -1) {
+                    out.write(b);
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String toString(Object result) {
+        return result instanceof byte[] ? Arrays.toString((byte[]) result) : String.valueOf(result);
+    }
+}